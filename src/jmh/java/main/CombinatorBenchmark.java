@@ -0,0 +1,177 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * コンビネータ論理計算の処理速度をJMHで測定するクラス。<br>
+ * トークン列への変換、1ステップずつの計算、正規形までの計算(文字列の書き換えとグラフ簡約)を、
+ * 項と大きさの組み合わせごとに測定する。メモリ確保量は"-prof gc"で表示する。
+ *
+ * <p>実行方法: java -jar src/jmh/target/benchmarks.jar [-p term=ski,sii,church] [-p size=1,4,16,64] [-prof gc]</p>
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 測定する項:<br>
+ * <ul>
+ *   <li><p> ski    - SKK(SKK(...x))。sizeは入れ子の数。</p></li>
+ *   <li><p> sii    - SII(SII)。簡約の回数をsize * 64回で打ち切る。</p></li>
+ *   <li><p> church - &lt;add&gt;(n)(n)Ix。nは&lt;zero&gt;に&lt;suc&gt;をsize回適用した数。</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CombinatorBenchmark {
+  /**
+   * 測定する項の名前。
+   */
+  @Param({ "ski", "sii", "church" })
+  public String term;
+
+  /**
+   * 項の大きさ。
+   */
+  @Param({ "1", "4", "16", "64" })
+  public int size;
+
+  /**
+   * 測定する項。
+   */
+  private String clcode;
+
+  /**
+   * 正規形まで計算する実行オプション。
+   */
+  private Options options;
+
+  /**
+   * 1ステップずつの計算で進めるステップ数の上限。
+   */
+  private int stepLimit;
+
+  /**
+   * 項と実行オプションを作る。
+   */
+  @Setup
+  public void setUp() {
+    long maxSteps = 0;
+    if ("ski".equals(term)) {
+      clcode = nest("SKK(", "x", size);
+    } else if ("sii".equals(term)) {
+      clcode = "SII(SII)";
+      maxSteps = size * 64L;
+    } else if ("church".equals(term)) {
+      if (!isDefined("<add>") || !isDefined("<suc>") || !isDefined("<zero>")) {
+        throw new IllegalStateException("Combinators.csv does not define <add>, <suc> and <zero>");
+      }
+      String numeral = nest("<suc>(", "<zero>", size);
+      clcode = "<add>(" + numeral + ")(" + numeral + ")Ix";
+    } else {
+      throw new IllegalArgumentException("Unknown term: " + term);
+    }
+    options = Options.parse(new String[] { "-s", "-mode", "nf", "-maxsteps", String.valueOf(maxSteps) });
+    stepLimit = size * 64;
+  }
+
+  /**
+   * トークン列への変換。
+   */
+  @Benchmark
+  public int tokenize() {
+    return Code.tokenizer.tokenize(clcode).length;
+  }
+
+  /**
+   * 文字列の書き換えで、ステップ数の上限まで1ステップずつ計算する。
+   */
+  @Benchmark
+  public long step() {
+    Code code = new Code(clcode, new Context(options, ConsoleOut.NULL_OUT));
+    long count = 0;
+    try {
+      while (count < stepLimit) {
+        count++;
+        if (!code.step()) {
+          break;
+        }
+      }
+    } catch (BudgetExceededException e) {
+      // 簡約の回数の上限まで計算する
+    }
+    return count;
+  }
+
+  /**
+   * 文字列の書き換えで正規形まで計算する。
+   */
+  @Benchmark
+  public long normalize() {
+    Context context = new Context(options, ConsoleOut.NULL_OUT);
+    try {
+      new Code(clcode, context).calculate();
+    } catch (BudgetExceededException e) {
+      // 簡約の回数の上限まで計算する
+    }
+    return context.reductionCount;
+  }
+
+  /**
+   * グラフ簡約で正規形まで計算する。
+   */
+  @Benchmark
+  public long graph() {
+    Context context = new Context(options, ConsoleOut.NULL_OUT);
+    try {
+      new GraphCode(clcode, context).calculate();
+    } catch (BudgetExceededException e) {
+      // 簡約の回数の上限まで計算する
+    }
+    return context.reductionCount;
+  }
+
+  /**
+   * 先頭をsize回入れ子にした項を返す。
+   * @param open 入れ子にする項の先頭。括弧を開いて終わる
+   * @param inner 最も内側の項
+   * @param size 入れ子の数
+   */
+  private static String nest(String open, String inner, int size) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      sb.append(open);
+    }
+    sb.append(inner);
+    for (int i = 0; i < size; i++) {
+      sb.append(')');
+    }
+    return new String(sb);
+  }
+
+  /**
+   * マクロ関数が定義されているかどうかを調べる。
+   * @param name マクロ関数の名前
+   */
+  private static boolean isDefined(String name) {
+    int[] tokens = Code.tokenizer.tokenize(name);
+    return tokens.length == 1 && Code.tokenizer.getMacro(tokens[0]) != null;
+  }
+}
@@ -0,0 +1,109 @@
+package main;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 先頭が計算できなくなったコードの引数の1つを、正規形になるまで計算するタスク。<br>
+ * 引数ごとに別のCodeと計算の状態で計算するため、ステップ数と簡約の回数は引数ごとに決まり、
+ * どのスレッドで計算しても変わらない。
+ * 引数の中でさらに先頭が計算できなくなった場合は、同じ方法で引数をタスクに分ける。
+ * @author Shinichi Oouchi
+ */
+final class ArgumentTask extends RecursiveTask<int[]> {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * 計算する引数のトークン列。一番外の括弧は含まない。
+   */
+  private final int[] tokens;
+
+  /**
+   * 実行オプション。
+   */
+  private final Options options;
+
+  /**
+   * 括弧の中の計算結果のキャッシュ。使わない場合はnull。
+   */
+  private final NormalFormCache cache;
+
+  /**
+   * 引数を含むコードのトークン列を変換したTokenizer。
+   */
+  private final Tokenizer tokenizer;
+
+  /**
+   * 計算結果の一番外のCLTermの数。
+   */
+  private int clTermCount;
+
+  /**
+   * 計算のステップ数。
+   */
+  private long stepCount;
+
+  /**
+   * マクロ関数を実行した回数。
+   */
+  private long reductionCount;
+
+  /**
+   * 部分評価した定義によって、1回にまとめられた簡約の回数。
+   */
+  private long collapsedCount;
+
+  /**
+   * コンストラクタ。
+   * @param someTokens 計算する引数のトークン列
+   * @param context 引数を含むコードの計算の設定と状態
+   */
+  ArgumentTask(int[] someTokens, Context context) {
+    tokens = someTokens;
+    options = context.options;
+    cache = context.cache;
+    tokenizer = context.tokenizer;
+  }
+
+  @Override
+  protected int[] compute() {
+    // 計算過程は出力しないため、出力先は捨てる
+    Context context = new Context(options, new PrintWriter(new StringWriter()), cache, null, false, tokenizer);
+    Code code = new Code(tokens, context);
+    code.calculate();
+    clTermCount = code.getCLTermCount();
+    stepCount = context.stepCount;
+    reductionCount = context.reductionCount;
+    collapsedCount = context.collapsedCount;
+    return code.getTokens();
+  }
+
+  /**
+   * 計算結果の一番外のCLTermの数を返す。計算を終えた後のみ呼ぶ。
+   */
+  final int getCLTermCount() {
+    return clTermCount;
+  }
+
+  /**
+   * 計算のステップ数を返す。計算を終えた後のみ呼ぶ。
+   */
+  final long getStepCount() {
+    return stepCount;
+  }
+
+  /**
+   * マクロ関数を実行した回数を返す。計算を終えた後のみ呼ぶ。
+   */
+  final long getReductionCount() {
+    return reductionCount;
+  }
+
+  /**
+   * 部分評価した定義によって、1回にまとめられた簡約の回数を返す。計算を終えた後のみ呼ぶ。
+   */
+  final long getCollapsedCount() {
+    return collapsedCount;
+  }
+}
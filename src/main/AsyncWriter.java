@@ -0,0 +1,199 @@
+package main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 書き込まれた文字列を別スレッドで出力先に書き出すWriter。<br>
+ * 計算のスレッドは文字列を一定の大きさのまとまりに溜めて渡すのみで、出力の完了を待たない。
+ * 書き出しが追いつかずに渡したまとまりが上限に達した場合は、空きができるまで計算のスレッドを待たせる。
+ * @author Shinichi Oouchi
+ */
+final class AsyncWriter extends Writer {
+  /**
+   * 1つのまとまりの文字数。
+   */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  /**
+   * 書き出しを待つまとまりの数の上限。
+   */
+  private static final int QUEUE_SIZE = 16;
+
+  /**
+   * 書き出しの終了を表すまとまり。
+   */
+  private static final char[] END = new char[0];
+
+  /**
+   * 書き出しを待つまとまり。溜めている途中のまとまりは文字数に切り詰めて渡す。
+   */
+  private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+  /**
+   * まとまりの数を更新、待機するためのロック。
+   * Writerのlockは書き込み中のスレッドが保持したまま待つことがあるため、別に用意する。
+   */
+  private final Object counter = new Object();
+
+  /**
+   * 書き出しが終わったまとまりの数。
+   */
+  private long writtenCount = 0;
+
+  /**
+   * 渡したまとまりの数。flushで書き出しの完了を待つために用いる。
+   */
+  private long queuedCount = 0;
+
+  /**
+   * 溜めている文字列。
+   */
+  private char[] chunk = new char[CHUNK_SIZE];
+
+  /**
+   * 溜めている文字数。
+   */
+  private int length = 0;
+
+  /**
+   * 書き出しを行うスレッド。
+   */
+  private final Thread drainer;
+
+  /**
+   * 書き出しの途中で発生した例外。
+   */
+  private volatile IOException failure;
+
+  /**
+   * コンストラクタ。
+   * @param anOut 出力先
+   */
+  AsyncWriter(Writer anOut) {
+    drainer = new Thread(() -> drain(anOut), "trace-writer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * 渡されたまとまりを順に出力先に書き出す。
+   * @param out 出力先
+   */
+  private void drain(Writer out) {
+    try {
+      while (true) {
+        char[] next = queue.take();
+        if (next != END) {
+          out.write(next);
+        }
+        if (queue.isEmpty()) {
+          out.flush();
+        }
+        synchronized (counter) {
+          writtenCount++;
+          counter.notifyAll();
+        }
+        if (next == END) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (counter) {
+        writtenCount = Long.MAX_VALUE;
+        counter.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    while (0 < len) {
+      int count = Math.min(len, chunk.length - length);
+      System.arraycopy(cbuf, off, chunk, length, count);
+      length += count;
+      off += count;
+      len -= count;
+      if (length == chunk.length) {
+        enqueue();
+      }
+    }
+  }
+
+  /**
+   * 溜めている文字列をまとまりとして渡す。書き出しを待つまとまりが上限に達している場合は待つ。
+   * @throws IOException 書き出しに失敗していた場合
+   */
+  private void enqueue() throws IOException {
+    if (length == 0) {
+      return;
+    }
+    char[] full = length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    put(full);
+    chunk = full == chunk ? new char[CHUNK_SIZE] : chunk;
+    length = 0;
+  }
+
+  /**
+   * まとまりを渡す。
+   * @param next 渡すまとまり
+   * @throws IOException 書き出しに失敗していた場合
+   */
+  private void put(char[] next) throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    try {
+      queue.put(next);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    synchronized (counter) {
+      queuedCount++;
+    }
+  }
+
+  /**
+   * 渡したまとまりがすべて書き出されるまで待つ。
+   * @throws IOException 書き出しに失敗していた場合
+   */
+  private void await() throws IOException {
+    synchronized (counter) {
+      while (writtenCount < queuedCount) {
+        try {
+          counter.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    enqueue();
+    await();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!drainer.isAlive()) {
+      return;
+    }
+    enqueue();
+    put(END);
+    await();
+  }
+}
@@ -0,0 +1,70 @@
+package main;
+
+/**
+ * 計算のステップ数、項の大きさ、経過時間のいずれかが制限を超えた場合、
+ * または計算が以前と同じ状態に戻った場合に投げられる例外。<br>
+ * 括弧の中を計算している場合は、外側の計算が途中の項を補って投げ直す。
+ * @author Shinichi Oouchi
+ */
+final class BudgetExceededException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * 計算を中断した時点までの項。
+   */
+  private String partialCode;
+
+  /**
+   * 計算が以前と同じ状態に戻ったかどうか。
+   */
+  private final boolean cycle;
+
+  /**
+   * コンストラクタ。
+   * @param message 超えた制限の説明
+   */
+  BudgetExceededException(String message) {
+    this(message, false);
+  }
+
+  /**
+   * 循環を指定するコンストラクタ。
+   * @param message 超えた制限、または循環の説明
+   * @param aCycle 計算が以前と同じ状態に戻った場合はtrue
+   */
+  BudgetExceededException(String message, boolean aCycle) {
+    super(message);
+    cycle = aCycle;
+  }
+
+  /**
+   * 計算が以前と同じ状態に戻った場合trueを返す。
+   */
+  final boolean isCycle() {
+    return cycle;
+  }
+
+  /**
+   * 括弧の中で中断した項に、外側の項を補う。
+   * @param outerCode 括弧の後に続く外側の項
+   */
+  final void wrap(String outerCode) {
+    wrap("", outerCode);
+  }
+
+  /**
+   * 括弧の中で中断した項に、外側の項を補う。
+   * @param prefix 括弧の前にある外側の項
+   * @param outerCode 括弧の後に続く外側の項
+   */
+  final void wrap(String prefix, String outerCode) {
+    partialCode = partialCode == null ? prefix + outerCode : prefix + "(" + partialCode + ")" + outerCode;
+  }
+
+  /**
+   * 計算を中断した時点までの項を返す。
+   */
+  final String getPartialCode() {
+    return partialCode == null ? "" : partialCode;
+  }
+}
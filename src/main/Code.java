@@ -10,9 +10,10 @@ import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 import strategy.BracketStrategy;
@@ -32,34 +33,417 @@ public class Code {
   /**
    * 先頭のコンビネータが引数不足に直面するまでループするのを制御するためのスイッチ。
    */
-  boolean loopSwitch = true;
+  private boolean loopSwitch = true;
+
+  /**
+   * マクロ関数の引数の数の最大値。
+   */
+  static int maxArgsCount;
 
   /**
    * 括弧の中にもぐっている数。
    */
-  public static int nestCount = 0;
+  private int nestCount = 0;
+
+  /**
+   * 引数をタスクに分けるのをやめる、このスレッドの未着手のタスクの数。
+   */
+  private static final int SURPLUS_TASKS = 3;
+
+  /**
+   * 括弧を元に戻す際に記録する開き括弧。
+   */
+  private static final int[] OPEN_TOKENS = { Tokenizer.OPEN };
+
+  /**
+   * 引数の計算を終える際に記録する閉じ括弧。
+   */
+  private static final int[] CLOSE_TOKENS = { Tokenizer.CLOSE };
+
+  /**
+   * すべてのマクロ関数の整形フォーマットの括弧の数が等しいかどうか。
+   */
+  private static boolean balancedFormats;
+
+  /**
+   * 計算中のコードのCLTermの数を書き換えのたびに更新するかどうか。<br>
+   * 括弧の数が不等な場合はCLTermの区切りが前後のコードによって変わるため、表示のたびに数える。
+   */
+  private final boolean countSwitch;
+
+  /**
+   * 計算中のコードのCLTermの数。
+   */
+  private int clTermCount;
+
+  /**
+   * もぐっている括弧ごとの、外側のコードに残っているCLTermの数。
+   */
+  private int[] outerCounts = new int[16];
+
+  /**
+   * もぐっている括弧ごとの、計算結果をキャッシュに登録するためのキー。登録しない場合はnull。
+   */
+  private NormalFormCache.Key[] cacheKeys = new NormalFormCache.Key[16];
+
+  /**
+   * もぐっている括弧ごとの、括弧の開始位置。配列の末尾からの距離で保持する。
+   */
+  private int[] bracketStarts = new int[16];
+
+  /**
+   * もぐっている括弧ごとの、外側のコードの終端の位置。配列の末尾からの距離で保持する。
+   */
+  private int[] outerEnds = new int[16];
+
+  /**
+   * 括弧の種類: 先頭の括弧。
+   */
+  private static final int HEAD_BRACKET = 0;
+
+  /**
+   * 括弧の種類: 正規形にする引数の括弧。
+   */
+  private static final int ARGUMENT_BRACKET = 1;
+
+  /**
+   * 括弧の種類: 正規形にする引数の0引数のマクロ関数。括弧を持たない。
+   */
+  private static final int ARGUMENT_MACRO = 2;
+
+  /**
+   * もぐっている括弧ごとの、括弧の種類。
+   */
+  private int[] bracketKinds = new int[16];
+
+  /**
+   * もぐっている括弧ごとの、括弧の次の位置。配列の末尾からの距離で保持する。
+   */
+  private int[] bracketNexts = new int[16];
+
+  /**
+   * もぐっている括弧ごとの、外側のコードの正規形になった部分の開始位置。
+   */
+  private int[] outerDoneStarts = new int[16];
+
+  /**
+   * もぐっている括弧ごとの、外側のコードの正規形になったCLTermの数。
+   */
+  private int[] outerDoneTerms = new int[16];
+
+  /**
+   * 引数も正規形になるまで計算するかどうか。falseの場合は弱頭部正規形で計算を終える。
+   */
+  private final boolean normalSwitch;
+
+  /**
+   * 先頭が計算できなくなったコードの引数を並列に計算する、引数のトークンの数の下限。並列に計算しない場合は0。
+   */
+  private final int forkThreshold;
+
+  /**
+   * 読み込み時に部分評価した定義を使うかどうか。
+   */
+  private final boolean foldSwitch;
+
+  /**
+   * 状態のハッシュ値を書き換えのたびに更新するかどうか。循環を検出する場合のみ更新する。
+   */
+  private final boolean hashSwitch;
+
+  /**
+   * 計算中のコードと外側のコードのハッシュ値。トークンごとに配列の末尾からの距離と混ぜた値の和とし、
+   * 書き換えたトークンの分だけ足し引きする。
+   */
+  private long tokensHash;
+
+  /**
+   * 正規形になったトークン列のハッシュ値。トークンごとに先頭からの位置と混ぜた値の和とする。
+   */
+  private long doneHash;
+
+  /**
+   * もぐっている括弧ごとの位置のハッシュ値。括弧ごとに混ぜた値の和とする。
+   */
+  private long framesHash;
 
   /**
-   * 計算に用いる可変長コンビネータ論理文字列。
+   * 正規形になったトークン列。先頭から順に確定し、計算中のコードの前に表示する。
    */
-  private StringBuilder codeSb;
+  private int[] done = new int[16];
 
   /**
-   * CodeSbの先頭に存在するコンビネータ論理項を取り出した物。
+   * 正規形になったトークンの数。
    */
-  private String clterm;
+  private int doneLength = 0;
 
   /**
-   * 変数の正規表現パターン
+   * 計算中のコードの正規形になった部分の開始位置。
    */
-  private static final Pattern variablePattern = Pattern.compile("^[a-z][_0-9]*");
+  private int doneStart = 0;
+
+  /**
+   * 計算中のコードの正規形になったCLTermの数。
+   */
+  private int doneTerms = 0;
+
+  /**
+   * 計算の設定と状態。
+   */
+  private final Context context;
+
+  /**
+   * マクロ関数の定義を読み込んだ、共有のTokenizer。計算ではContextのTokenizerを用いる。
+   */
+  static Tokenizer tokenizer;
+
+  /**
+   * 計算に用いるトークン列。tokens[head]からtokens[end - 1]までが計算中のコードとなる。<br>
+   * 括弧の中を計算している間は、その後ろに外側のコードが続く。
+   * 外側のコードの終端は常に配列の末尾となる。
+   */
+  private int[] tokens;
+
+  /**
+   * 括弧で括られた項ごとの、開き括弧から閉じ括弧の次までのトークンの数。tokensと同じ位置の開き括弧に対応する。<br>
+   * 引数の区切りを求める際に、括弧の中を走査せずに読み飛ばすために用いる。
+   * 括弧の数が不等な場合は項の区切りが前後のコードによって変わるため、保持せずnullとする。
+   */
+  private int[] spans;
+
+  /**
+   * spansを求める際に、閉じていない開き括弧の位置を積む作業領域。
+   */
+  private int[] openStack = new int[16];
+
+  /**
+   * 計算中のコードの先頭の位置。
+   */
+  private int head;
+
+  /**
+   * 計算中のコードの終端の位置。
+   */
+  private int end;
+
+  /**
+   * マクロ関数の引数の開始位置。計算のステップごとに再利用する。
+   */
+  private final int[] argStarts = new int[maxArgsCount];
+
+  /**
+   * マクロ関数の引数の終了位置。計算のステップごとに再利用する。
+   */
+  private final int[] argEnds = new int[maxArgsCount];
+
+  /**
+   * 整形後のトークン列を組み立てるための作業領域。
+   */
+  private int[] workTokens = new int[16];
+
+  /**
+   * workTokensの括弧ごとのトークンの数。spansを保持する場合のみ用いる。
+   */
+  private int[] workSpans = new int[16];
+
+  /**
+   * Javaで実装した計算に引数を渡すための作業領域。使うまでは生成しない。
+   */
+  private NativeCall nativeCall;
 
   /**
    * コンストラクタ。
    * @param string コンビネータ論理文字列
+   * @param aContext 計算の設定と状態
+   */
+  Code(CharSequence string, Context aContext) {
+    this(aContext.tokenizer.tokenize(string), aContext);
+  }
+
+  /**
+   * トークン列を計算するコンストラクタ。トークン列は計算に用いるため、呼び出し側では変更しない。
+   * @param someTokens トークン列
+   * @param aContext 計算の設定と状態
+   */
+  Code(int[] someTokens, Context aContext) {
+    tokens = someTokens;
+    head = 0;
+    end = tokens.length;
+    context = aContext;
+    if (context.stats != null) {
+      context.stats.allocate(tokens.length);
+    }
+    normalSwitch = aContext.options.normalSwitch;
+    foldSwitch = aContext.options.foldSwitch;
+    countSwitch = balancedFormats && hasSameBracketCount();
+    if (countSwitch) {
+      spans = new int[tokens.length];
+      indexSpans(tokens, spans, 0, tokens.length);
+    }
+    clTermCount = countCLTerms();
+    forkThreshold = countSwitch && canFork(aContext) ? aContext.options.forkThreshold : 0;
+    hashSwitch = aContext.options.cycleSwitch;
+    if (hashSwitch) {
+      tokensHash = hashTokens(0, tokens.length);
+    }
+  }
+
+  /**
+   * 引数を並列に計算できる場合trueを返す。<br>
+   * 計算過程の出力と記録、統計情報、簡約の経路の記録、制限、循環の検出はステップの順序に依存するため、
+   * いずれかを指定した場合は逐次に計算する。
+   * @param aContext 計算の設定と状態
    */
-  public Code(String string) {
-    codeSb = new StringBuilder(string);
+  private static boolean canFork(Context aContext) {
+    Options options = aContext.options;
+    return options.forkSwitch && options.normalSwitch && !options.printSwitch && !options.listSwitch
+        && options.waitTime <= 0 && aContext.trace == null && aContext.stats == null
+        && aContext.profile == null && options.maxSteps == 0
+        && options.maxSize == 0 && options.timeout == 0 && !options.cycleSwitch;
+  }
+
+  /**
+   * 計算の状態を複製するコンストラクタ。<br>
+   * 計算中のコードと外側のコードのみを複製する。括弧ごとの位置は配列の末尾からの距離のまま用いる。
+   * 計算結果をキャッシュに登録するためのキーは複製しない。
+   * @param source 複製元
+   * @param aContext 複製後の計算の設定と状態
+   */
+  private Code(Code source, Context aContext) {
+    context = aContext;
+    normalSwitch = source.normalSwitch;
+    foldSwitch = source.foldSwitch;
+    countSwitch = source.countSwitch;
+    forkThreshold = source.forkThreshold;
+    hashSwitch = source.hashSwitch;
+    loopSwitch = source.loopSwitch;
+    tokens = Arrays.copyOfRange(source.tokens, source.head, source.tokens.length);
+    spans = source.spans == null ? null : Arrays.copyOfRange(source.spans, source.head, source.tokens.length);
+    head = 0;
+    end = source.end - source.head;
+    clTermCount = source.clTermCount;
+    nestCount = source.nestCount;
+    int capacity = Math.max(16, nestCount);
+    outerCounts = Arrays.copyOf(source.outerCounts, capacity);
+    cacheKeys = new NormalFormCache.Key[capacity];
+    bracketStarts = Arrays.copyOf(source.bracketStarts, capacity);
+    outerEnds = Arrays.copyOf(source.outerEnds, capacity);
+    bracketKinds = Arrays.copyOf(source.bracketKinds, capacity);
+    bracketNexts = Arrays.copyOf(source.bracketNexts, capacity);
+    outerDoneStarts = Arrays.copyOf(source.outerDoneStarts, capacity);
+    outerDoneTerms = Arrays.copyOf(source.outerDoneTerms, capacity);
+    done = Arrays.copyOf(source.done, Math.max(16, source.doneLength));
+    doneLength = source.doneLength;
+    doneStart = source.doneStart;
+    doneTerms = source.doneTerms;
+    tokensHash = source.tokensHash;
+    doneHash = source.doneHash;
+    framesHash = source.framesHash;
+  }
+
+  /**
+   * 計算の状態を複製する。
+   * @param aContext 複製後の計算の設定と状態
+   * @return 複製したコード
+   */
+  final Code copy(Context aContext) {
+    return new Code(this, aContext);
+  }
+
+  /**
+   * 計算の状態のハッシュ値を返す。循環を検出しない場合は常に0となる。<br>
+   * 書き換えのたびに更新した値を組み合わせるのみで、トークン列は走査しない。
+   * 状態が等しければハッシュ値も等しいため、ハッシュ値が一致した場合のみsameStateで比べる。
+   */
+  final long stateHash() {
+    long hash = mix(tokensHash, tokens.length - end);
+    hash = mix(hash + doneHash, doneStart);
+    hash = mix(hash + framesHash, doneTerms);
+    return mix(hash, nestCount);
+  }
+
+  /**
+   * ハッシュ値と位置を混ぜた値を返す。
+   * @param value ハッシュ値またはトークン
+   * @param position 位置
+   */
+  private static long mix(long value, long position) {
+    long hash = value * 0x9E3779B97F4A7C15L + position;
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  /**
+   * tokens[from]からtokens[to - 1]までのハッシュ値を返す。位置は配列の末尾からの距離とする。
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  private final long hashTokens(int from, int to) {
+    long hash = 0;
+    for (int i = from; i < to; i++) {
+      hash += mix(tokens[i], tokens.length - i);
+    }
+    return hash;
+  }
+
+  /**
+   * done[from]からdone[to - 1]までのハッシュ値を返す。
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  private final long hashDone(int from, int to) {
+    long hash = 0;
+    for (int i = from; i < to; i++) {
+      hash += mix(done[i], i);
+    }
+    return hash;
+  }
+
+  /**
+   * index番目にもぐっている括弧の位置のハッシュ値を返す。
+   * @param index 括弧の番号
+   */
+  private final long hashFrame(int index) {
+    long hash = mix(bracketKinds[index], index);
+    hash = mix(hash, bracketStarts[index]);
+    hash = mix(hash, bracketNexts[index]);
+    hash = mix(hash, outerEnds[index]);
+    hash = mix(hash, outerDoneStarts[index]);
+    return mix(hash, outerDoneTerms[index]);
+  }
+
+  /**
+   * 計算の状態が等しい場合trueを返す。<br>
+   * 計算中のコードと外側のコード、もぐっている括弧、正規形になった部分がすべて等しい場合に等しいとする。
+   * 大きさを先に比べ、書き換えは先頭で起こるため、トークン列は先頭から比べる。
+   * @param other 比べる状態
+   */
+  final boolean sameState(Code other) {
+    int size = tokens.length - head;
+    if (size != other.tokens.length - other.head || tokens.length - end != other.tokens.length - other.end
+        || nestCount != other.nestCount || doneLength != other.doneLength || doneStart != other.doneStart
+        || doneTerms != other.doneTerms) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (tokens[head + i] != other.tokens[other.head + i]) {
+        return false;
+      }
+    }
+    for (int i = 0; i < nestCount; i++) {
+      if (bracketKinds[i] != other.bracketKinds[i] || bracketStarts[i] != other.bracketStarts[i]
+          || bracketNexts[i] != other.bracketNexts[i] || outerEnds[i] != other.outerEnds[i]
+          || outerDoneStarts[i] != other.outerDoneStarts[i] || outerDoneTerms[i] != other.outerDoneTerms[i]) {
+        return false;
+      }
+    }
+    for (int i = 0; i < doneLength; i++) {
+      if (done[i] != other.done[i]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -88,21 +472,44 @@ public class Code {
       }
     }
 
-    Path path = file.toPath();
-    try (BufferedReader br = Files.newBufferedReader(path, Charset.forName("UTF-8"))) {
-      macroFunctionList = br.lines()
-          .filter(l -> !l.startsWith("#") && l.length() != 0)
-          .map(m -> m.replaceAll("[ ||　||\t]", "").split(","))
-          .map(MacroCombinator::new)
-          .collect(Collectors.toList());
-    } catch (IOException e) {
-      e.printStackTrace();
+    // CSVが変更されていなければ、前回コンパイルした定義のスナップショットを読み込む
+    File snapshotFile = new File("Combinators.snapshot");
+    macroFunctionList = DefinitionSnapshot.read(snapshotFile, file);
+    boolean fresh = macroFunctionList == null;
+    if (fresh) {
+      Path path = file.toPath();
+      try (BufferedReader br = Files.newBufferedReader(path, Charset.forName("UTF-8"))) {
+        macroFunctionList = br.lines()
+            .filter(l -> !l.startsWith("#") && l.length() != 0)
+            .map(m -> m.replaceAll("[ ||　||\t]", "").split(","))
+            .map(MacroCombinator::new)
+            .collect(Collectors.toList());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    maxArgsCount = macroFunctionList.stream().mapToInt(m -> m.argsCount).max().orElse(0);
+    tokenizer = new Tokenizer(macroFunctionList);
+    balancedFormats = true;
+    for (MacroCombinator macro : macroFunctionList) {
+      if (fresh) {
+        macro.compile(tokenizer);
+      }
+      balancedFormats &= macro.isBalanced();
+    }
+    if (fresh) {
+      DefinitionFolder.fold(macroFunctionList, tokenizer);
+      DefinitionSnapshot.write(snapshotFile, file, macroFunctionList);
+    }
+    for (MacroCombinator macro : macroFunctionList) {
+      if (macro.getFolded() != null) {
+        maxArgsCount = Math.max(maxArgsCount, macro.getFolded().argsCount);
+      }
     }
   }
 
   /**
    * 括弧の数が等しければ、trueを返す。
-   * @param code 調べる対象の文字列
    * @return
    *         括弧の数が0で終了した場合、trueを返す。<br>
    *         括弧の数が0で終了しなかった場合、falseを返す。<br>
@@ -110,12 +517,11 @@ public class Code {
    */
   final boolean hasSameBracketCount() {
     int count = 0;
-    String code = new String(codeSb);
-    for (char ch : code.toCharArray()) {
-      if (ch == '(') {
+    for (int i = head; i < end; i++) {
+      if (tokens[i] == Tokenizer.OPEN) {
         count++;
       }
-      if (ch == ')') {
+      if (tokens[i] == Tokenizer.CLOSE) {
         count--;
       }
       if (count < 0) {
@@ -129,152 +535,781 @@ public class Code {
   }
 
   /**
-   * CLTermの数を数える
+   * CLTermの数を返す。
    */
   final int getCLTermCount() {
-    int clTermCount = 0;
-    StringBuilder copySb = new StringBuilder(codeSb);
+    return doneTerms + (countSwitch ? clTermCount : countCLTerms());
+  }
+
+  /**
+   * CLTermの数を数える
+   */
+  private final int countCLTerms() {
+    int count = 0;
+    for (int i = head; i < end; i = skipCLTerm(i)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * indexの位置から始まるCLTermの次の位置を返す。
+   * @param index CLTermの開始位置
+   * @return CLTermの次の位置
+   */
+  private final int skipCLTerm(int index) {
+    if (spans != null && tokens[index] == Tokenizer.OPEN) {
+      return index + spans[index];
+    }
+    return Tokenizer.skipCLTerm(tokens, index, end);
+  }
+
+  /**
+   * 括弧の数が等しいトークン列の、括弧ごとのトークンの数を求める。
+   * @param someTokens トークン列
+   * @param someSpans 括弧ごとのトークンの数の出力先。someTokensと同じ位置に書き込む
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  private final void indexSpans(int[] someTokens, int[] someSpans, int from, int to) {
+    int depth = 0;
+    for (int i = from; i < to; i++) {
+      if (someTokens[i] == Tokenizer.OPEN) {
+        if (openStack.length == depth) {
+          openStack = Arrays.copyOf(openStack, depth * 2);
+        }
+        openStack[depth++] = i;
+      } else if (someTokens[i] == Tokenizer.CLOSE) {
+        int open = openStack[--depth];
+        someSpans[open] = i + 1 - open;
+      }
+    }
+  }
+
+  /**
+   * CLTermをコードから取り出す。
+   * @return 取り出したCLTerm
+   */
+  public final String pollCLTerm() {
+    if (head < end) {
+      int next = skipCLTerm(head);
+      StringBuilder sb = new StringBuilder();
+      context.tokenizer.appendTo(sb, tokens, head, next);
+      if (hashSwitch) {
+        tokensHash -= hashTokens(head, next);
+      }
+      head = next;
+      return new String(sb);
+    }
+    return "";
+  }
+
+  /**
+   * 先頭の括弧で括られた項の中にもぐり、一番外の括弧を除いた中身を計算中のコードとする。<br>
+   * トークン列はコピーせず、外側のコードの位置をスタックに積むのみとする。
+   * @return 常にtrue
+   */
+  public final boolean enterCompoundCode() {
+    int next = skipCLTerm(head);
+    NormalFormCache.Key key = null;
+    if (context.cache != null && countSwitch) {
+      key = NormalFormCache.Key.of(tokens, head + 1, next - 1, context.tokenizer);
+      NormalFormCache.NormalForm entry = key == null ? null : context.cache.get(key);
+      if (entry != null) {
+        // 同じコードの計算結果がある場合は、括弧の中にもぐらずに置き換える
+        if (context.trace != null) {
+          context.trace.splice(doneLength, next - head, entry.tokens, 0, entry.tokens.length);
+        }
+        if (hashSwitch) {
+          tokensHash -= hashTokens(head, next);
+        }
+        head = next;
+        insertTokens(entry.tokens, null, 0, entry.tokens.length);
+        clTermCount += entry.clTermCount - 1;
+        return true;
+      }
+    }
+    pushFrame(HEAD_BRACKET, next, key);
+    if (context.stats != null) {
+      context.stats.descend();
+    }
+    // 一番外に存在する括弧の削除
+    if (context.trace != null) {
+      context.trace.splice(doneLength, 1, tokens, head, head);
+    }
+    if (hashSwitch) {
+      tokensHash -= hashTokens(head, head + 1);
+    }
+    head = head + 1;
+    end = Math.max(head, next - 1);
+    if (countSwitch) {
+      clTermCount = countCLTerms();
+    }
+    return true;
+  }
+
+  /**
+   * 外側のコードの位置をスタックに積む。
+   * @param kind 括弧の種類
+   * @param next 括弧の次の位置
+   * @param key 計算結果をキャッシュに登録するためのキー。登録しない場合はnull
+   */
+  private final void pushFrame(int kind, int next, NormalFormCache.Key key) {
+    if (bracketStarts.length == nestCount) {
+      bracketStarts = Arrays.copyOf(bracketStarts, nestCount * 2);
+      outerEnds = Arrays.copyOf(outerEnds, nestCount * 2);
+      outerCounts = Arrays.copyOf(outerCounts, nestCount * 2);
+      cacheKeys = Arrays.copyOf(cacheKeys, nestCount * 2);
+      bracketKinds = Arrays.copyOf(bracketKinds, nestCount * 2);
+      bracketNexts = Arrays.copyOf(bracketNexts, nestCount * 2);
+      outerDoneStarts = Arrays.copyOf(outerDoneStarts, nestCount * 2);
+      outerDoneTerms = Arrays.copyOf(outerDoneTerms, nestCount * 2);
+    }
+    if (context.profile != null) {
+      if (kind == HEAD_BRACKET) {
+        context.profile.enter(Profile.BRACKET, 0);
+      } else {
+        // 計算できなくなった項の先頭は、正規形になった部分の先頭にある
+        context.profile.enter(Profile.ARGUMENT, done[doneStart]);
+      }
+    }
+    cacheKeys[nestCount] = key;
+    bracketKinds[nestCount] = kind;
+    bracketStarts[nestCount] = tokens.length - head;
+    bracketNexts[nestCount] = tokens.length - next;
+    outerEnds[nestCount] = tokens.length - end;
+    outerCounts[nestCount] = clTermCount - 1;
+    outerDoneStarts[nestCount] = doneStart;
+    outerDoneTerms[nestCount] = doneTerms;
+    if (hashSwitch) {
+      framesHash += hashFrame(nestCount);
+    }
+    nestCount++;
+    doneStart = doneLength;
+    doneTerms = 0;
+  }
+
+  /**
+   * 括弧の中の計算を終え、計算結果を括弧を除いて外側のコードの先頭に戻す。<br>
+   * 閉じ括弧の分だけ計算結果をずらすのみで、新たな配列は確保しない。
+   * @return 括弧の中が空の場合は括弧を元に戻してfalse
+   */
+  private final boolean leaveCompoundCode() {
+    nestCount--;
+    if (hashSwitch) {
+      framesHash -= hashFrame(nestCount);
+    }
+    if (context.profile != null) {
+      context.profile.leave();
+    }
+    int outerEnd = tokens.length - outerEnds[nestCount];
+    doneStart = outerDoneStarts[nestCount];
+    doneTerms = outerDoneTerms[nestCount];
+    if (end <= head) {
+      if (context.trace != null) {
+        context.trace.splice(doneLength, 0, OPEN_TOKENS, 0, 1);
+      }
+      int start = tokens.length - bracketStarts[nestCount];
+      if (hashSwitch) {
+        tokensHash += hashTokens(start, head);
+      }
+      head = start;
+      end = outerEnd;
+      clTermCount = outerCounts[nestCount] + 1;
+      return false;
+    }
+    NormalFormCache.Key key = cacheKeys[nestCount];
+    if (key != null) {
+      cacheKeys[nestCount] = null;
+      context.cache.put(key, new NormalFormCache.NormalForm(Arrays.copyOfRange(tokens, head, end), clTermCount));
+    }
+    if (context.trace != null) {
+      context.trace.splice(doneLength + end - head, 1, tokens, end, end);
+    }
+    if (hashSwitch) {
+      // 閉じ括弧を含めて、ずらすトークンの分を足し直す
+      tokensHash -= hashTokens(head, end + 1);
+    }
+    System.arraycopy(tokens, head, tokens, head + 1, end - head);
+    if (spans != null) {
+      System.arraycopy(spans, head, spans, head + 1, end - head);
+    }
+    if (context.stats != null) {
+      context.stats.copy(end - head);
+    }
+    head++;
+    if (hashSwitch) {
+      tokensHash += hashTokens(head, end + 1);
+    }
+    end = outerEnd;
+    clTermCount += outerCounts[nestCount];
+    return true;
+  }
+
+  /**
+   * 先頭のCLTermが計算できなくなったコードの、引数を左から順に正規形にする。<br>
+   * 正規形になったCLTermはdoneに移し、括弧で括られた引数と0引数のマクロ関数は
+   * 外側のコードの位置をスタックに積んで、その中を計算中のコードとする。
+   * 引数がすべて正規形になった括弧は外側のコードに戻し、続く引数に進む。
+   * @return 引数の中にもぐった場合はtrue。コード全体が正規形になった場合はfalse
+   */
+  private final boolean normalizeArguments() {
     while (true) {
-      if (0 < codeSb.length()) {
-        pollCLTerm();
-        clTermCount++;
+      while (head < end) {
+        if (doneTerms == 1 && 0 < forkThreshold && forkArguments()) {
+          break;
+        }
+        int next = skipCLTerm(head);
+        if (0 < doneTerms) {
+          int top = tokens[head];
+          // 0引数かどうかは元の定義で判断する。部分評価で引数の数が増えた定義も展開して計算する
+          MacroCombinator macro = context.tokenizer.getMacro(top);
+          if (top == Tokenizer.OPEN && head + 1 < next - 1) {
+            // 括弧で括られた引数は括弧を残したまま中身を計算する
+            appendDone(tokens, head, head + 1);
+            if (hashSwitch) {
+              tokensHash -= hashTokens(head, head + 1);
+            }
+            pushFrame(ARGUMENT_BRACKET, next, null);
+            if (context.stats != null) {
+              context.stats.descend();
+            }
+            head = head + 1;
+            end = next - 1;
+            if (countSwitch) {
+              clTermCount = countCLTerms();
+            }
+            return true;
+          }
+          if (macro != null && macro.argsCount == 0) {
+            // 0引数のマクロ関数は展開結果を括弧で括って計算する
+            if (context.trace != null) {
+              context.trace.splice(doneLength, 0, OPEN_TOKENS, 0, 1);
+            }
+            appendDone(OPEN_TOKENS, 0, 1);
+            pushFrame(ARGUMENT_MACRO, next, null);
+            if (context.stats != null) {
+              context.stats.descend();
+            }
+            end = next;
+            clTermCount = 1;
+            return true;
+          }
+        }
+        appendDone(tokens, head, next);
+        if (hashSwitch) {
+          tokensHash -= hashTokens(head, next);
+        }
+        head = next;
+        doneTerms++;
+        clTermCount--;
+      }
+      if (nestCount == 0) {
+        return false;
+      }
+      leaveArgument();
+    }
+  }
+
+  /**
+   * 計算中のコードの引数に、トークンの数がforkThreshold以上の括弧が2つ以上ある場合、
+   * 残りの引数をすべてタスクに分けて正規形にし、引数の順にdoneに移す。<br>
+   * 大きな引数のみ他のスレッドに渡し、それ以外はこのスレッドで計算する。
+   * タスクは引数のトークン列を複製して持つため、他のスレッドが十分なタスクを持っている場合は分けずに逐次に計算する。
+   * ステップ数と簡約の回数は引数ごとの値を足すため、どちらの場合も逐次に計算した場合と同じになる。
+   * @return 引数をタスクに分けた場合はtrue
+   */
+  private final boolean forkArguments() {
+    if (SURPLUS_TASKS < ForkJoinTask.getSurplusQueuedTaskCount()) {
+      return false;
+    }
+    int largeCount = 0;
+    for (int i = head; i < end && largeCount < 2; i = skipCLTerm(i)) {
+      if (isLargeArgument(i)) {
+        largeCount++;
+      }
+    }
+    if (largeCount < 2) {
+      return false;
+    }
+    List<ArgumentTask> tasks = new ArrayList<>();
+    for (int i = head; i < end; i = skipCLTerm(i)) {
+      int next = skipCLTerm(i);
+      MacroCombinator macro = context.tokenizer.getMacro(tokens[i]);
+      ArgumentTask task = null;
+      if (tokens[i] == Tokenizer.OPEN && i + 1 < next - 1) {
+        task = new ArgumentTask(Arrays.copyOfRange(tokens, i + 1, next - 1), context);
+        if (isLargeArgument(i)) {
+          task.fork();
+        }
+      } else if (macro != null && macro.argsCount == 0) {
+        task = new ArgumentTask(new int[] { tokens[i] }, context);
+      }
+      tasks.add(task);
+    }
+    if (hashSwitch) {
+      tokensHash -= hashTokens(head, end);
+    }
+    int index = 0;
+    for (; head < end; head = skipCLTerm(head)) {
+      ArgumentTask task = tasks.get(index++);
+      if (task == null) {
+        appendDone(tokens, head, skipCLTerm(head));
       } else {
-        break;
+        int[] result = isLargeArgument(head) ? task.join() : task.invoke();
+        if (task.getCLTermCount() == 1) {
+          appendDone(result, 0, result.length);
+        } else {
+          appendDone(OPEN_TOKENS, 0, 1);
+          appendDone(result, 0, result.length);
+          appendDone(CLOSE_TOKENS, 0, 1);
+        }
+        context.stepCount += task.getStepCount();
+        context.reductionCount += task.getReductionCount();
+        context.collapsedCount += task.getCollapsedCount();
       }
     }
-    codeSb = new StringBuilder(copySb);
-    return clTermCount;
+    doneTerms += tasks.size();
+    clTermCount -= tasks.size();
+    return true;
   }
 
   /**
-   * 先頭の括弧でくくられた項を返す(括弧自体も含む)。
-   * @param target 対象文字列
-   * @return 括弧で括られた文字列
+   * indexの位置から始まる引数が、他のスレッドに渡す大きさの括弧の場合trueを返す。
    */
-  private final String getCompoundTerm(String target) {
-    return getCompoundTerm(target, 0);
+  private final boolean isLargeArgument(int index) {
+    return tokens[index] == Tokenizer.OPEN && forkThreshold <= skipCLTerm(index) - index;
   }
 
   /**
-   * indexの位置から開始する括弧で括られた項を返す(括弧自体も含む)。
-   * @param target 対象文字列
-   * @param index 括弧の開始位置
-   * @return 括弧で括られた文字列
+   * 正規形になった引数の計算を終え、外側のコードに戻す。<br>
+   * 引数が1つのCLTermになった場合は括弧を取り除く。
    */
-  private final String getCompoundTerm(String target, int index) {
-    int k = 0;
-    StringBuilder sb = new StringBuilder();
-    for (char ch : target.toCharArray()) {
-      k = ch == '(' ? ++k : k;
-      k = ch == ')' ? --k : k;
-      sb.append(ch);
-      // ')'を見つけ、最終的にネストの回数が0になった時、括弧の終わりと判定し、ループを抜ける。
-      if (k == 0) {
-        break;
+  private final void leaveArgument() {
+    nestCount--;
+    if (hashSwitch) {
+      framesHash -= hashFrame(nestCount);
+    }
+    if (context.profile != null) {
+      context.profile.leave();
+    }
+    int kind = bracketKinds[nestCount];
+    if (doneTerms == 1) {
+      // 括弧が不要な場合は、doneの開き括弧と計算中のコードの閉じ括弧を取り除く
+      if (context.trace != null) {
+        context.trace.splice(doneStart - 1, 1, tokens, head, head);
+      }
+      if (hashSwitch) {
+        doneHash -= hashDone(doneStart - 1, doneLength);
       }
+      System.arraycopy(done, doneStart, done, doneStart - 1, doneLength - doneStart);
+      doneLength--;
+      if (hashSwitch) {
+        doneHash += hashDone(doneStart - 1, doneLength);
+      }
+      if (context.trace != null && kind == ARGUMENT_BRACKET) {
+        context.trace.splice(doneLength, 1, tokens, head, head);
+      }
+    } else {
+      if (context.trace != null && kind == ARGUMENT_MACRO) {
+        context.trace.splice(doneLength, 0, CLOSE_TOKENS, 0, 1);
+      }
+      appendDone(CLOSE_TOKENS, 0, 1);
     }
-    return new String(sb);
+    int next = tokens.length - bracketNexts[nestCount];
+    if (hashSwitch) {
+      tokensHash -= hashTokens(head, next);
+    }
+    head = next;
+    end = tokens.length - outerEnds[nestCount];
+    clTermCount = outerCounts[nestCount];
+    doneStart = outerDoneStarts[nestCount];
+    doneTerms = outerDoneTerms[nestCount] + 1;
   }
 
   /**
-   * コンビネータ論理項(CLTerm)を返す。
-   * 取り出すCLTermはそれぞれ以下のいずれかである。
-   *
-   * {@literal @formatter:off}<br>
-   *
-   * <ul>
-   *   <li><p> 1. 括弧で括られた括弧を含む文字列</p></li>
-   *   <li><p> 2. 小文字1つで始まる、アンダースコアや数字が0個以上連続する文字列</p></li>
-   *   <li><p> 3. テキストファイルで定義したマクロ関数の名前と一致する文字列</p></li>
-   * </ul>
-   *
-   * {@literal @formatter:on}<br>
-   *
-   * 上記のいずれとも一致しない文字列の場合は、未定義のコンビネータとして、警告文を表示する。
-   * @param target 対象文字列
-   * @return CLTerm
-   */
-  private final String getCLTerm() {
-    String code = new String(codeSb);
-    // コードの先頭の文字を取り出して判定
-    char top = code.charAt(0);
-    if (top == '(') {
-      // 括弧の場合
-      return getCompoundTerm(code);
-    }
-    if (Character.isLowerCase(top)) {
-      // 小文字で始まる変数項の場合
-      Matcher m = variablePattern.matcher(code);
-      if (m.find()) {
-        return m.group();
+   * トークン列をdoneの末尾に追加する。
+   * @param src 追加するトークン列
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  private final void appendDone(int[] src, int from, int to) {
+    int length = to - from;
+    if (done.length < doneLength + length) {
+      done = Arrays.copyOf(done, Math.max(done.length * 2, doneLength + length));
+      if (context.stats != null) {
+        context.stats.allocate(done.length);
       }
     }
-    for (MacroCombinator macro : macroFunctionList) {
-      // マクロ定義した関数の場合
-      String functionName = macro.name;
-      if (code.startsWith(functionName)) {
-        return code.substring(0, functionName.length());
+    System.arraycopy(src, from, done, doneLength, length);
+    if (context.stats != null) {
+      context.stats.copy(length);
+    }
+    if (hashSwitch) {
+      doneHash += hashDone(doneLength, doneLength + length);
+    }
+    doneLength += length;
+  }
+
+  /**
+   * 正規形になったコード全体を、計算中のコードに戻す。
+   */
+  private final void finishNormalForm() {
+    tokens = Arrays.copyOf(done, doneLength);
+    if (spans != null) {
+      spans = new int[doneLength];
+      indexSpans(tokens, spans, 0, doneLength);
+    }
+    if (context.stats != null) {
+      context.stats.allocate(doneLength);
+      context.stats.copy(doneLength);
+    }
+    head = 0;
+    end = doneLength;
+    clTermCount = doneTerms;
+    if (hashSwitch) {
+      tokensHash = hashTokens(0, doneLength);
+      doneHash = 0;
+    }
+    done = new int[16];
+    doneLength = 0;
+    doneTerms = 0;
+  }
+
+  /**
+   * コードの先頭にトークン列を挿入する。<br>
+   * 先頭の前に空きがある場合はそこへ書き込み、足りない場合のみ配列を拡張して
+   * 外側のコードを含むトークンを配列の末尾へ移動する。
+   * @param src 挿入するトークン列
+   * @param srcSpans 挿入するトークン列の括弧ごとのトークンの数。nullの場合は挿入後に求める
+   * @param from 挿入するトークン列の開始位置
+   * @param length 挿入するトークンの数
+   */
+  private final void insertTokens(int[] src, int[] srcSpans, int from, int length) {
+    if (head < length) {
+      int size = tokens.length - head;
+      int[] dest = new int[Math.max(tokens.length * 2, size + length)];
+      System.arraycopy(tokens, head, dest, dest.length - size, size);
+      if (spans != null) {
+        int[] destSpans = new int[dest.length];
+        System.arraycopy(spans, head, destSpans, dest.length - size, size);
+        spans = destSpans;
+      }
+      if (context.stats != null) {
+        context.stats.allocate(dest.length);
+        context.stats.copy(size);
+      }
+      end += dest.length - tokens.length;
+      head = dest.length - size;
+      tokens = dest;
+    }
+    head -= length;
+    System.arraycopy(src, from, tokens, head, length);
+    if (spans != null) {
+      if (srcSpans != null) {
+        System.arraycopy(srcSpans, from, spans, head, length);
+      } else {
+        indexSpans(tokens, spans, head, head + length);
       }
     }
-    // 未定義の関数の場合
-    String sub = code.substring(0, 1);
-    return sub;
+    if (hashSwitch) {
+      tokensHash += hashTokens(head, head + length);
+    }
+    if (context.stats != null) {
+      context.stats.copy(length);
+    }
   }
 
   /**
-   * CLTermをcodeSbから取り出す。
-   * @return 取り出したCLTerm
+   * 取り出したマクロ関数の引数を整形フォーマットに当てはめ、コードの先頭に挿入する。<br>
+   * spansを保持する場合、引数の括弧ごとのトークンの数はそのまま写し、整形フォーマットの括弧のみ求める。
+   * @param macro マクロ関数
+   * @return 挿入したトークンの数
    */
-  public final String pollCLTerm() {
-    if (0 < codeSb.length()) {
-      String clt = getCLTerm();
-      codeSb.delete(0, clt.length());
-      return clt;
+  private final int replaceNumber(MacroCombinator macro) {
+    int length = 0;
+    int slotCount = macro.getSlotCount();
+    for (int i = 0; i < slotCount; i++) {
+      int slot = macro.getSlot(i);
+      length += macro.getSegment(i).length + argEnds[slot] - argStarts[slot];
     }
-    return "";
+    length += macro.getSegment(slotCount).length;
+    if (workTokens.length < length) {
+      workTokens = new int[Math.max(workTokens.length * 2, length)];
+      if (spans != null) {
+        workSpans = new int[workTokens.length];
+      }
+      if (context.stats != null) {
+        context.stats.allocate(workTokens.length);
+      }
+    }
+    if (context.stats != null) {
+      context.stats.copy(length);
+    }
+
+    int index = 0;
+    int depth = 0;
+    for (int i = 0; i <= slotCount; i++) {
+      int[] segment = macro.getSegment(i);
+      System.arraycopy(segment, 0, workTokens, index, segment.length);
+      if (spans != null) {
+        for (int j = 0; j < segment.length; j++) {
+          if (segment[j] == Tokenizer.OPEN) {
+            if (openStack.length == depth) {
+              openStack = Arrays.copyOf(openStack, depth * 2);
+            }
+            openStack[depth++] = index + j;
+          } else if (segment[j] == Tokenizer.CLOSE) {
+            int open = openStack[--depth];
+            workSpans[open] = index + j + 1 - open;
+          }
+        }
+      }
+      index += segment.length;
+      if (i < slotCount) {
+        int slot = macro.getSlot(i);
+        int argLength = argEnds[slot] - argStarts[slot];
+        System.arraycopy(tokens, argStarts[slot], workTokens, index, argLength);
+        if (spans != null) {
+          System.arraycopy(spans, argStarts[slot], workSpans, index, argLength);
+        }
+        index += argLength;
+      }
+    }
+    insertTokens(workTokens, spans != null ? workSpans : null, 0, length);
+    return length;
+  }
+
+  /**
+   * 先頭のマクロ関数の引数を取り出し、マクロ関数を実行する。
+   * @param macro マクロ関数
+   * @return 引数が足りず実行できなかった場合はfalse
+   */
+  private final boolean combinatorDo(MacroCombinator macro) {
+    int start = head - 1;
+    int rule = tokens[start];
+    for (int i = 0; i < macro.argsCount; i++) {
+      if (end <= head) {
+        // 元のコードが空になって、これ以上項を取り出すことが不可能な場合
+        return false;
+      }
+      argStarts[i] = head;
+      head = skipCLTerm(head);
+      argEnds[i] = head;
+      context.console.printList(this, i + 1);
+    }
+    int removed = head - start;
+    if (hashSwitch) {
+      // 取り出したマクロ関数と引数の分を引く。挿入で上書きされる前に求める
+      tokensHash -= hashTokens(start, head);
+    }
+    int termCount = macro.getNativeCombinator() == null ? -1 : nativeDo(macro);
+    int length;
+    if (termCount < 0) {
+      length = replaceNumber(macro);
+      termCount = macro.getTermCount();
+    } else {
+      length = nativeCall.getLength();
+      insertTokens(nativeCall.getResult(), null, 0, length);
+    }
+    if (context.trace != null) {
+      context.trace.rewrite(rule, doneLength, removed, tokens, head, head + length);
+    }
+    clTermCount += termCount - 1 - macro.argsCount;
+    context.reductionCount++;
+    context.collapsedCount += macro.getCollapsedCount();
+    if (context.stats != null) {
+      context.stats.reduce(rule);
+    }
+    if (context.profile != null) {
+      context.profile.reduce(rule);
+    }
+    return true;
   }
 
   /**
-   * 計算中のプログラムの先頭の文字列が、マクロで定義した関数名と一致するかどうかを調べ、
+   * 計算中のコードの先頭に、指定した数の引数があるかどうかを調べる。
+   * @param count 引数の数
+   */
+  private final boolean hasArguments(int count) {
+    int index = head;
+    for (int i = 0; i < count; i++) {
+      if (end <= index) {
+        return false;
+      }
+      index = skipCLTerm(index);
+    }
+    return true;
+  }
+
+  /**
+   * 取り出したマクロ関数の引数をJavaで実装した計算に渡す。<br>
+   * 計算結果の括弧の数が等しくない場合は、計算しなかったものとみなす。
+   * @param macro マクロ関数
+   * @return 計算結果の一番外のCLTermの数。計算しなかった場合は-1
+   */
+  private final int nativeDo(MacroCombinator macro) {
+    if (nativeCall == null) {
+      nativeCall = new NativeCall();
+    }
+    nativeCall.reset(tokens, argStarts, argEnds, macro.argsCount);
+    if (!macro.getNativeCombinator().reduce(nativeCall)) {
+      return -1;
+    }
+    int[] result = nativeCall.getResult();
+    int length = nativeCall.getLength();
+    int depth = 0;
+    int termCount = 0;
+    for (int i = 0; i < length; i++) {
+      if (depth == 0) {
+        termCount++;
+      }
+      depth = result[i] == Tokenizer.OPEN ? depth + 1 : result[i] == Tokenizer.CLOSE ? depth - 1 : depth;
+      if (depth < 0) {
+        return -1;
+      }
+    }
+    return depth == 0 ? termCount : -1;
+  }
+
+  /**
+   * 取り出したマクロ関数の引数のリストを返す。
+   * @param count 取り出した引数の数
+   * @return 引数のリスト
+   */
+  final List<String> getArgList(int count) {
+    List<String> list = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      StringBuilder sb = new StringBuilder();
+      context.tokenizer.appendTo(sb, tokens, argStarts[i], argEnds[i]);
+      list.add(new String(sb));
+    }
+    return list;
+  }
+
+  /**
+   * 計算中のプログラムの先頭のCLTermが、マクロで定義した関数かどうかを調べ、
    * 一致した場合はマクロ関数を実行する。
    * 一致しなかった場合は、括弧で始まる場合か、変数の場合であると判定する。
-   * 最終的にloopSwitchをfalseにし、計算用に文字列を取り出した場合は復元して終了する。
+   * 計算を続けられない場合はloopSwitchをfalseにし、取り出したCLTermを元に戻して終了する。
    */
   private final void functionDo() {
-    clterm = pollCLTerm();
-
-    String result = "";
-    for (MacroCombinator macro : macroFunctionList) {
-      if (clterm.startsWith(macro.name)) {
-        // result = macro.calculate(this);
-        result = new MacroCombinator(macro).calculate(this);
-        codeSb.insert(0, result);
-        return;
+    if (end <= head) {
+      loopSwitch = false;
+      return;
+    }
+    int start = head;
+    int top = tokens[head];
+    MacroCombinator macro = context.tokenizer.getMacro(top, foldSwitch);
+    if (macro != null) {
+      head++;
+      MacroCombinator original = context.tokenizer.getMacro(top);
+      if (original.argsCount < macro.argsCount && !hasArguments(macro.argsCount)) {
+        // 部分評価で引数の数が増えた定義の引数が足りない場合は、元の定義で計算する
+        macro = original;
+      }
+      if (context.isReductionLimit() && hasArguments(macro.argsCount)) {
+        // 簡約の回数の上限に達した後に、さらに簡約できる場合
+        head = start;
+        context.exceedReductions(tokens.length - head + doneLength);
       }
+      loopSwitch = combinatorDo(macro);
+    } else if (top == Tokenizer.OPEN) {
+      loopSwitch = new BracketStrategy(this).calculate();
+    } else if (context.tokenizer.isVariable(top)) {
+      loopSwitch = new VariableStrategy(this).calculate();
+    } else {
+      loopSwitch = false;
     }
+    if (!loopSwitch) {
+      head = start;
+    }
+  }
 
-    if (0 < clterm.length()) {
-      if (clterm.startsWith("(")) {
-        result = new BracketStrategy(this).calculate(clterm);
+  /**
+   * コンビネータ論理で計算を行う。<br>
+   * 括弧の中の計算は再帰せずに、外側のコードの位置をスタックに積んで行う。
+   * 正規形まで計算する場合は、先頭が計算できなくなった後に引数を左から順に計算する。
+   * @throws BudgetExceededException 計算が制限を超えた場合、または以前と同じ状態に戻った場合。
+   *         外側のコードを補った途中の項を持つ
+   */
+  public final void calculate() {
+    if (context.trace != null) {
+      context.trace.begin(tokens, head, tokens.length);
+    }
+    CycleDetector cycle = context.options.cycleSwitch ? new CycleDetector(this, context) : null;
+    try {
+      while (loopSwitch) {
+        context.checkBudget(tokens.length - head + doneLength);
+        if (context.stats != null) {
+          context.stats.observe(tokens.length - head + doneLength, nestCount);
+        }
+        context.console.printCode(this);
+        context.stepCount++;
+        step();
+        if (cycle != null && loopSwitch) {
+          cycle.check(this);
+        }
+      }
+    } catch (BudgetExceededException e) {
+      StringBuilder sb = new StringBuilder();
+      appendTo(sb);
+      e.wrap(new String(sb));
+      int innerEnd = end;
+      int innerDoneStart = doneStart;
+      for (int i = nestCount - 1; 0 <= i; i--) {
+        // 外側のコードの正規形になった部分と、括弧の後ろから外側のコードの終端まで
+        int kind = bracketKinds[i];
+        int outerEnd = tokens.length - outerEnds[i];
+        sb.setLength(0);
+        context.tokenizer.appendTo(sb, done, outerDoneStarts[i], innerDoneStart - (kind == HEAD_BRACKET ? 0 : 1));
+        String prefix = new String(sb);
+        sb.setLength(0);
+        int outerFrom = Math.min(innerEnd + (kind == ARGUMENT_MACRO ? 0 : 1), outerEnd);
+        context.tokenizer.appendTo(sb, tokens, outerFrom, outerEnd);
+        e.wrap(prefix, new String(sb));
+        innerEnd = outerEnd;
+        innerDoneStart = outerDoneStarts[i];
       }
-      if (clterm.startsWith("[a-z]")) {
-        result = new VariableStrategy(this).calculate(clterm);
+      throw e;
+    } finally {
+      if (context.trace != null) {
+        context.trace.end();
       }
-      codeSb.insert(0, result);
     }
-    loopSwitch = 0 < result.length();
   }
 
   /**
-   * コンビネータ論理で計算を行う。
+   * 計算を1ステップ進める。<br>
+   * 括弧の中の計算が終わった場合は、計算結果を外側のコードに戻すところまで行う。
+   * 正規形まで計算する場合は、先頭が計算できなくなった後に次の引数の中にもぐるところまで行う。
+   * @return 計算を続けられる場合はtrue
    */
-  public final void calculate() {
-    while (loopSwitch) {
-      ConsoleOut.printCode(this);
-      functionDo();
-      ConsoleOut.waitCalculate();
+  final boolean step() {
+    functionDo();
+    context.console.waitCalculate();
+    while (!loopSwitch) {
+      if (0 < nestCount && bracketKinds[nestCount - 1] == HEAD_BRACKET) {
+        loopSwitch = leaveCompoundCode();
+      } else if (normalSwitch) {
+        loopSwitch = normalizeArguments();
+        if (!loopSwitch) {
+          finishNormalForm();
+          break;
+        }
+      } else {
+        break;
+      }
+      context.console.waitCalculate();
     }
-    codeSb.insert(0, clterm);
+    return loopSwitch;
+  }
+
+  /**
+   * 括弧の中にもぐっている数を返す。
+   */
+  final int getNestCount() {
+    return nestCount;
   }
 
   /**
@@ -282,7 +1317,48 @@ public class Code {
    * @return 保持するCLCode
    */
   public final String getCode() {
-    return new String(codeSb);
+    StringBuilder sb = new StringBuilder();
+    appendTo(sb);
+    return new String(sb);
+  }
+
+  /**
+   * 計算中のコードのトークン列を複製して返す。
+   */
+  final int[] getTokens() {
+    return Arrays.copyOfRange(tokens, head, end);
+  }
+
+  /**
+   * 計算中のコードのトークンの数を返す。
+   */
+  final int getTokenCount() {
+    return doneLength - doneStart + end - head;
+  }
+
+  /**
+   * 計算中のコードの正規形になった部分の、計算過程の記録での開始位置を返す。
+   */
+  final int getDoneStart() {
+    return doneStart;
+  }
+
+  /**
+   * コードを文字列としてsbに書き出す。
+   * @param sb 出力先
+   */
+  final void appendTo(StringBuilder sb) {
+    context.tokenizer.appendTo(sb, done, doneStart, doneLength);
+    context.tokenizer.appendTo(sb, tokens, head, end);
+  }
+
+  /**
+   * コードを文字列を生成せずに1行出力する。
+   * @param printer 項の出力器
+   * @param out 出力先
+   */
+  final void printTo(TermPrinter printer, PrintWriter out) {
+    printer.print(out, done, doneStart, doneLength, tokens, head, end);
   }
 
   /**
@@ -290,27 +1366,6 @@ public class Code {
    * @return
    */
   final boolean hasUndefinedCombinator() {
-    String code = new String(codeSb);
-    // コードの先頭の文字を取り出して判定
-    char top = code.charAt(0);
-    if (top == '(') {
-      return false;
-    }
-    if (Character.isLowerCase(top)) {
-      // 小文字で始まる変数項の場合
-      Matcher m = variablePattern.matcher(code);
-      if (m.find()) {
-        return false;
-      }
-    }
-    for (MacroCombinator macro : macroFunctionList) {
-      // マクロ定義した関数の場合
-      String functionName = macro.name;
-      if (code.startsWith(functionName)) {
-        return false;
-      }
-    }
-    // 未定義の関数の場合
-    return true;
+    return head < end && context.tokenizer.isUndefined(tokens[head]);
   }
 }
@@ -1,128 +1,266 @@
 package main;
 
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.PrintWriter;
+import java.io.Writer;
 
 /**
- * 計算過程のコンソール出力を管理するクラス。
+ * 計算過程のコンソール出力を管理するクラス。<br>
+ * 1つのCLCodeの計算ごとに生成し、出力先とステップ数を保持する。
  * @author Shinichi Oouchi
- * @version 1.0
+ * @version 1.1
  */
 final class ConsoleOut {
   /**
-   * 計算過程を表示するスイッチ。
+   * 書き込んだ内容を捨てる出力先。計算過程も計算結果も使わない計算で共有する。
    */
-  private static boolean printSwitch = true;
+  static final PrintWriter NULL_OUT = new PrintWriter(new Writer() {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  });
 
   /**
-   * コンビネータが保持するコンビネータのリストを表示するスイッチ。
+   * 実行オプション。
    */
-  private static boolean listSwitch = false;
+  private final Options options;
 
   /**
-   * インデント整形を行うスイッチ。
+   * 出力先。
    */
-  private static boolean indentSwitch = true;
+  private final PrintWriter out;
 
   /**
-   * 計算を追跡できるように挟むスリープタイム。
+   * 計算過程のバイナリ形式での記録先。記録しない場合はnull。
    */
-  private static int waitTime = 0;
+  private final TraceWriter trace;
+
+  /**
+   * 項をトークン列に変換するTokenizer。
+   */
+  private final Tokenizer tokenizer;
 
   /**
    * 計算のステップ数。
    */
-  static int stepCount = 0;
+  private int stepCount = 0;
+
+  /**
+   * 計算過程の1行を組み立てるための作業領域。行ごとに再利用する。
+   */
+  private final StringBuilder line = new StringBuilder();
+
+  /**
+   * 作業領域の文字列を出力先に渡すための配列。
+   */
+  private char[] chars = new char[256];
 
   /**
-   * コンストラクタを利用したスイッチの更新。
-   * @param args
+   * 項をトークン列から直接出力するための出力器。
    */
-  static final void setCommandLineOptions(String[] args) {
-    List<String> argsList = Arrays.asList(args);
+  private final TermPrinter printer;
 
-    printSwitch = (argsList.contains("-s") || argsList.contains("-silent")) ? false : true;
-    listSwitch = (argsList.contains("-l") || argsList.contains("-list")) ? true : false;
-    indentSwitch = (argsList.contains("-n") || argsList.contains("-noindent")) ? false : true;
-    setWaitTime(argsList, "-w");
-    setWaitTime(argsList, "-wait");
+  /**
+   * コンストラクタ。
+   * @param anOptions 実行オプション
+   * @param anOut 出力先
+   * @param aTrace 計算過程のバイナリ形式での記録先。記録しない場合はnull
+   * @param aTokenizer 項をトークン列に変換するTokenizer
+   */
+  ConsoleOut(Options anOptions, PrintWriter anOut, TraceWriter aTrace, Tokenizer aTokenizer) {
+    options = anOptions;
+    out = anOut;
+    trace = aTrace;
+    tokenizer = aTokenizer;
+    printer = new TermPrinter(anOptions, aTokenizer);
   }
 
   /**
-   * 次の処理が実行されるまでの待ち時間を設定する。
-   * @param argsList
-   * @param options
+   * 計算過程のコードを出力する。
    */
-  private static final void setWaitTime(List<String> argsList, String options) {
-    if (argsList.contains(options)) {
-      int index = argsList.indexOf(options);
-      index = Math.min(index + 1, argsList.size() - 1);
-      String number = argsList.get(index);
-      waitTime = number.matches("^[0-9]*") ? Integer.parseInt(number) : waitTime;
+  final void printCode(Code aCode) {
+    if (trace != null) {
+      trace.step(aCode.getCLTermCount(), aCode.getNestCount(), aCode.getDoneStart(), aCode.getTokenCount());
+    }
+    if (options.printSwitch) {
+      startLine(aCode.getCLTermCount(), aCode.getNestCount());
+      if (printer.isPlain()) {
+        aCode.appendTo(line);
+        writeLine();
+      } else {
+        writeChars();
+        aCode.printTo(printer, out);
+      }
     }
   }
 
   /**
-   * インデントを生成する。
+   * グラフ簡約での計算過程のコードを出力する。
+   * @param spine 計算中の項
+   * @param nestCount 括弧の中にもぐっている数
    */
-  private static final String makeIndent() {
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0; i < Code.nestCount; i++) {
-      sb.append("  ");
+  final void printCode(GraphCode.Spine spine, int nestCount) {
+    if (trace != null) {
+      // グラフ簡約では差分を求められないため、計算中の項全体を記録する
+      int[] tokens = tokenizer.tokenize(spine.toString());
+      trace.snapshot(tokens);
+      trace.step(spine.size(), nestCount, 0, tokens.length);
+    }
+    if (options.printSwitch) {
+      startLine(spine.size(), nestCount);
+      if (printer.isPlain()) {
+        spine.appendTo(line);
+        writeLine();
+      } else {
+        writeChars();
+        printer.print(out, tokenizer.tokenize(spine.toString()));
+      }
     }
-    return new String(sb);
   }
 
   /**
-   * 計算過程のコードを出力する。
+   * 計算過程の1行のうち、コードの前までを作業領域に書き込む。<br>
+   * String.formatを使わずに、"S: %4d | CLT: %5d | N: %3d | Code: "と同じ形式で書き込む。
+   * @param clTermCount CLTermの数
+   * @param nestCount 括弧の中にもぐっている数
+   */
+  private final void startLine(int clTermCount, int nestCount) {
+    stepCount++;
+    line.setLength(0);
+    line.append("S: ");
+    appendPadded(stepCount, 4);
+    line.append(" | CLT: ");
+    appendPadded(clTermCount, 5);
+    line.append(" | N: ");
+    appendPadded(nestCount, 3);
+    line.append(" | Code: ");
+    if (options.indentSwitch) {
+      for (int i = 0; i < nestCount; i++) {
+        line.append("  ");
+      }
+    }
+  }
+
+  /**
+   * 作業領域の文字列をStringを生成せずに1行出力する。
+   */
+  private final void writeLine() {
+    writeChars();
+    out.println();
+  }
+
+  /**
+   * 作業領域の文字列をStringを生成せずに、改行せずに出力する。
    */
-  static final void printCode(Code aCode) {
-    if (printSwitch) {
-      stepCount++;
-      StringBuilder sb = new StringBuilder();
-      sb.append(String.format("S: %1$4d | ", stepCount));
-      sb.append(String.format("CLT: %1$5d | ", aCode.getCLTermCount()));
-      sb.append(String.format("N: %1$3d | ", Code.nestCount));
-      String indent = indentSwitch ? makeIndent() : "";
-      sb.append(String.format("Code: %s%s", indent, aCode.getCode()));
-      System.out.println(new String(sb));
+  private final void writeChars() {
+    int length = line.length();
+    if (chars.length < length) {
+      chars = new char[Math.max(chars.length * 2, length)];
     }
+    line.getChars(0, length, chars, 0);
+    out.write(chars, 0, length);
   }
 
   /**
-   * マクロ関数が保持しているリストを表示する。
-   * @param list
+   * 数値を右詰めで作業領域に書き込む。
+   * @param value 数値
+   * @param width 幅
    */
-  static final void printList(LinkedList<String> list) {
-    if (listSwitch) {
-      System.out.println("Combinator list:              | List: " + list);
+  private final void appendPadded(int value, int width) {
+    int start = line.length();
+    line.append(value);
+    for (int i = line.length() - start; i < width; i++) {
+      line.insert(start, ' ');
     }
   }
 
   /**
-   * ウェイトを挟む。
+   * マクロ関数が取り出した引数のリストを表示する。
+   * @param aCode 引数を取り出しているコード
+   * @param count 取り出した引数の数
    */
-  static final void waitCalculate() {
+  final void printList(Code aCode, int count) {
+    if (options.listSwitch) {
+      out.println("Combinator list:              | List: " + aCode.getArgList(count));
+    }
+  }
+
+  /**
+   * ウェイトを挟む。<br>
+   * ウェイトが0の場合は何もしない。ウェイトがある場合は計算過程を追跡できるように出力を書き出す。
+   */
+  final void waitCalculate() {
+    if (options.waitTime <= 0) {
+      return;
+    }
+    out.flush();
     try {
-      Thread.sleep(waitTime);
+      Thread.sleep(options.waitTime);
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * 1行出力する。
+   * @param line 出力する文字列
+   */
+  final void println(String line) {
+    out.println(line);
+  }
+
+  /**
+   * 見出しに続けて、コードの項を文字列を生成せずに1行出力する。<br>
+   * 表示の制限を指定した場合は制限に従い、共有する括弧の定義の行も出力する。
+   * @param label 見出し
+   * @param aCode 出力するコード
+   */
+  final void printTerm(String label, Code aCode) {
+    out.write(label);
+    aCode.printTo(printer, out);
+  }
+
+  /**
+   * 見出しに続けて、文字列の項を1行出力する。<br>
+   * 表示の制限を指定した場合のみ、トークン列に変換して制限に従って出力する。
+   * @param label 見出し
+   * @param code 出力する項
+   */
+  final void printTerm(String label, String code) {
+    if (printer.isPlain()) {
+      out.println(label + code);
+      return;
+    }
+    out.write(label);
+    printer.print(out, tokenizer.tokenize(code));
+  }
+
+  /**
+   * 出力先に溜まっている文字列を書き出す。
+   */
+  final void flush() {
+    out.flush();
+  }
+
   private static final String WARNING = "<< WARNING >> ";
 
   /**
    * 警告文を表示する。
    * @param aCode
    */
-  static final void printWarning(Code aCode) {
+  final void printWarning(Code aCode) {
     if (!aCode.hasSameBracketCount()) {
-      System.out.println(WARNING + "Count of bracket is not correct.");
+      out.println(WARNING + "Count of bracket is not correct.");
     }
     if (aCode.hasUndefinedCombinator()) {
-      System.out.println(WARNING + "Undefined Combinator exists.");
+      out.println(WARNING + "Undefined Combinator exists.");
     }
   }
 
@@ -0,0 +1,200 @@
+package main;
+
+import java.io.PrintWriter;
+
+/**
+ * 1つのCLCodeの計算で共有する設定と状態を保持するクラス。<br>
+ * 計算ごとに生成するため、複数のCLCodeを同時に計算しても状態が混ざることはない。
+ * @author Shinichi Oouchi
+ */
+final class Context {
+  /**
+   * 実行オプション。
+   */
+  final Options options;
+
+  /**
+   * トークン列への変換に用いるTokenizer。常駐モードでは要求ごとに生成する。
+   */
+  final Tokenizer tokenizer;
+
+  /**
+   * 計算過程の出力先。
+   */
+  final ConsoleOut console;
+
+  /**
+   * マクロ関数を実行した回数。
+   */
+  long reductionCount = 0;
+
+  /**
+   * 計算のステップ数。表示の有無にかかわらず数える。
+   */
+  long stepCount = 0;
+
+  /**
+   * 読み込み時に部分評価した定義によって、1回にまとめられた簡約の回数。
+   */
+  long collapsedCount = 0;
+
+  /**
+   * 括弧の中の計算結果のキャッシュ。使わない場合はnull。
+   */
+  final NormalFormCache cache;
+
+  /**
+   * 計算過程のバイナリ形式での記録先。記録しない場合はnull。
+   */
+  final TraceWriter trace;
+
+  /**
+   * 計算の統計情報。集めない場合はnull。
+   */
+  final Statistics.Line stats;
+
+  /**
+   * 簡約ごとの経路の記録。記録しない場合はnull。
+   */
+  final Profile.Line profile;
+
+  /**
+   * 経過時間を調べるステップ数の間隔。System.nanoTime()の呼び出しを間引く。
+   */
+  private static final long TIME_CHECK_INTERVAL = 1 << 10;
+
+  /**
+   * 簡約の回数の上限。
+   */
+  private final long maxSteps;
+
+  /**
+   * 項の大きさの上限。
+   */
+  private final long maxSize;
+
+  /**
+   * 計算を打ち切る時刻(System.nanoTime())。
+   */
+  private long deadline;
+
+  /**
+   * 計算を開始した時刻(System.nanoTime())。
+   */
+  private long startTime;
+
+  /**
+   * 次に経過時間を調べるステップ数。
+   */
+  private long nextCheck;
+
+  /**
+   * コンストラクタ。
+   * @param anOptions 実行オプション
+   * @param out 出力先
+   */
+  Context(Options anOptions, PrintWriter out) {
+    this(anOptions, out, null, null);
+  }
+
+  /**
+   * キャッシュと計算過程の記録先を指定するコンストラクタ。
+   * @param anOptions 実行オプション
+   * @param out 出力先
+   * @param aCache 括弧の中の計算結果のキャッシュ。使わない場合はnull
+   * @param aTrace 計算過程のバイナリ形式での記録先。記録しない場合はnull
+   */
+  Context(Options anOptions, PrintWriter out, NormalFormCache aCache, TraceWriter aTrace) {
+    this(anOptions, out, aCache, aTrace, anOptions.statsFile != null);
+  }
+
+  /**
+   * 統計情報を集めるかどうかを指定するコンストラクタ。
+   * @param anOptions 実行オプション
+   * @param out 出力先
+   * @param aCache 括弧の中の計算結果のキャッシュ。使わない場合はnull
+   * @param aTrace 計算過程のバイナリ形式での記録先。記録しない場合はnull
+   * @param statsSwitch 統計情報を集める場合はtrue
+   */
+  Context(Options anOptions, PrintWriter out, NormalFormCache aCache, TraceWriter aTrace, boolean statsSwitch) {
+    this(anOptions, out, aCache, aTrace, statsSwitch, Code.tokenizer);
+  }
+
+  /**
+   * Tokenizerを指定するコンストラクタ。
+   * @param anOptions 実行オプション
+   * @param out 出力先
+   * @param aCache 括弧の中の計算結果のキャッシュ。使わない場合はnull
+   * @param aTrace 計算過程のバイナリ形式での記録先。記録しない場合はnull
+   * @param statsSwitch 統計情報を集める場合はtrue
+   * @param aTokenizer トークン列への変換に用いるTokenizer
+   */
+  Context(Options anOptions, PrintWriter out, NormalFormCache aCache, TraceWriter aTrace, boolean statsSwitch,
+      Tokenizer aTokenizer) {
+    options = anOptions;
+    tokenizer = aTokenizer;
+    cache = aCache;
+    trace = aTrace;
+    stats = statsSwitch ? new Statistics.Line() : null;
+    profile = anOptions.profileFile != null ? new Profile.Line() : null;
+    console = new ConsoleOut(anOptions, out, aTrace, aTokenizer);
+    maxSteps = 0 < options.maxSteps ? options.maxSteps : Long.MAX_VALUE;
+    maxSize = 0 < options.maxSize ? options.maxSize : Long.MAX_VALUE;
+    startBudget();
+  }
+
+  /**
+   * 経過時間の計測を開始する。
+   */
+  final void startBudget() {
+    startTime = System.nanoTime();
+    deadline = 0 < options.timeout ? startTime + options.timeout * 1_000_000L : Long.MAX_VALUE;
+    nextCheck = stepCount + TIME_CHECK_INTERVAL;
+  }
+
+  /**
+   * 計算が制限を超えていないかを調べる。<br>
+   * 計算のステップごとに呼ぶため、通常は比較2回で戻る。
+   * 経過時間は簡約を行わないステップも含めて、一定のステップ数ごとにのみ調べる。
+   * 簡約の回数はisReductionLimit()で簡約の前に調べる。
+   * @param size 計算中の項の大きさ
+   * @throws BudgetExceededException 制限を超えた場合
+   */
+  final void checkBudget(long size) {
+    if (stepCount < nextCheck && size <= maxSize) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (maxSize < size) {
+      throw exceeded("size > " + maxSize, size, now);
+    }
+    if (deadline <= now) {
+      throw exceeded("time > " + options.timeout + " ms", size, now);
+    }
+    nextCheck = stepCount + TIME_CHECK_INTERVAL;
+  }
+
+  /**
+   * 簡約の回数が上限に達したかどうかを返す。上限に達した後は、次の簡約を行う前に計算を打ち切る。
+   */
+  final boolean isReductionLimit() {
+    return maxSteps <= reductionCount;
+  }
+
+  /**
+   * 簡約の回数の上限に達した後に、さらに簡約しようとした計算を打ち切る。
+   * @param size 計算中の項の大きさ
+   * @throws BudgetExceededException 常に投げる
+   */
+  final void exceedReductions(long size) {
+    throw exceeded("steps > " + maxSteps, size, System.nanoTime());
+  }
+
+  /**
+   * 超えた制限と計算の状態を説明する例外を作る。
+   */
+  private BudgetExceededException exceeded(String reason, long size, long now) {
+    return new BudgetExceededException(String.format("%s (steps: %d, size: %d, time: %d ms)",
+        reason, reductionCount, size, (now - startTime) / 1_000_000L));
+  }
+}
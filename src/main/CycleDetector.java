@@ -0,0 +1,116 @@
+package main;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * 計算が以前と同じ状態に戻ったことを検出するクラス。<br>
+ * Brentの方法で、2のべき乗のステップごとに状態を1つだけ複製して保持し、以降の各ステップの状態と比べる。
+ * 比べる際は書き換えのたびに更新した状態のハッシュ値を先に比べ、
+ * 一致した場合のみトークン列を先頭から比べるため、ステップごとの負担は状態の大きさによらない。
+ * 同じ状態に戻った場合、計算は決定的なので以降も同じ状態を繰り返す。
+ * 循環の開始位置は、検出後に最初の状態から計算し直して求める。
+ * @author Shinichi Oouchi
+ */
+final class CycleDetector {
+  /**
+   * 計算し直すための、計算過程を出力しない計算の設定と状態。
+   */
+  private final Context quiet;
+
+  /**
+   * 計算を開始した時点の状態。
+   */
+  private final Code initial;
+
+  /**
+   * 計算を開始した時点のステップ数。
+   */
+  private final long startStep;
+
+  /**
+   * 比べる対象として保持している状態。
+   */
+  private Code saved;
+
+  /**
+   * savedのハッシュ値。
+   */
+  private long savedHash;
+
+  /**
+   * savedを保持してから次に保持し直すまでのステップ数。
+   */
+  private long power = 1;
+
+  /**
+   * savedを保持してからのステップ数。
+   */
+  private long period = 0;
+
+  /**
+   * 計算を開始してからのステップ数。
+   */
+  private long steps = 0;
+
+  /**
+   * コンストラクタ。
+   * @param code 計算を開始するコード
+   * @param context 計算の設定と状態
+   */
+  CycleDetector(Code code, Context context) {
+    Options options = Options.parse(context.options.stepwiseSwitch
+        ? new String[] { "-s", "-mode", context.options.mode, "-stepwise" }
+        : new String[] { "-s", "-mode", context.options.mode });
+    quiet = new Context(options, new PrintWriter(new StringWriter()), null, null, false, context.tokenizer);
+    initial = code.copy(quiet);
+    saved = initial;
+    savedHash = initial.stateHash();
+    startStep = context.stepCount;
+  }
+
+  /**
+   * 1ステップ進めた後の状態を調べる。
+   * @param code 計算中のコード
+   * @throws BudgetExceededException 以前と同じ状態に戻った場合
+   */
+  final void check(Code code) {
+    steps++;
+    period++;
+    if (code.stateHash() == savedHash && code.sameState(saved)) {
+      throw new BudgetExceededException(String.format("cycle (start: step %d, period: %d steps)",
+          startStep + findStart(), period), true);
+    }
+    if (period == power) {
+      saved = code.copy(quiet);
+      savedHash = saved.stateHash();
+      power *= 2;
+      period = 0;
+    }
+  }
+
+  /**
+   * 最初の状態から計算し直し、循環に入った時点を求める。<br>
+   * periodステップ先行させたコードと同時に進め、初めて状態が一致した時点が循環の開始となる。
+   * 括弧の中の計算結果のキャッシュを使った場合は計算の過程が変わることがあるため、
+   * 検出までのステップ数を超えた場合は、保持していた状態の時点を返す。
+   * @return 計算を開始してから循環に入るまでのステップ数
+   */
+  private long findStart() {
+    Code ahead = initial.copy(quiet);
+    Code behind = initial.copy(quiet);
+    for (long i = 0; i < period; i++) {
+      if (!ahead.step()) {
+        return steps - period;
+      }
+    }
+    long start = 0;
+    while (ahead.stateHash() != behind.stateHash() || !ahead.sameState(behind)) {
+      if (steps - period <= start || !ahead.step() || !behind.step()) {
+        return steps - period;
+      }
+      start++;
+    }
+    return start;
+  }
+}
@@ -0,0 +1,144 @@
+package main;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Combinators.csvの定義を読み込み時に部分評価するクラス。<br>
+ * 定義を引数の代わりの変数に適用して正規形まで計算し、計算結果を1回の簡約で行う定義を作る。
+ * 元の定義は変更せず、部分評価した定義をMacroCombinatorに追加する。
+ * 計算結果は元の定義で何回か簡約した結果と等しい。引数の数を増やした定義の引数が足りない場合、
+ * CodeとGraphCodeは元の定義で計算する。弱頭部正規形で止める位置は変わることがあるため、
+ * 部分評価した定義は-mode nfの場合のみ使い、-stepwiseを指定した場合は使わない。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 部分評価の規則:<br>
+ * <ul>
+ *   <li><p> 引数の並べ替え - 0引数の定義をn個(1から10)の変数に適用した正規形が、変数と括弧のみからなる場合、
+ *                           最小のnを引数の数とし、正規形を整形フォーマットとする。
+ *                           1引数以上の定義は、引数の数を変えずに同じ条件を満たす場合のみ置き換える。</p></li>
+ *   <li><p> 0引数の定義     - 並べ替えにならない場合は、定義の正規形を整形フォーマットとする。</p></li>
+ * </ul>
+ * いずれも正規形まで計算した簡約の回数が2回以上の場合のみ置き換える。
+ * 計算が制限を超えた場合は部分評価しない。NativeCombinatorを指定した定義と括弧の数が不等な定義は対象外とする。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class DefinitionFolder {
+  /**
+   * 適用する変数の数の最大値。整形フォーマットの引数の番号は1文字のため10とする。
+   */
+  private static final int MAX_ARGS = 10;
+
+  /**
+   * 部分評価の計算の設定。元の定義のみを使い、簡約の回数と項の大きさを制限する。
+   */
+  private static final String[] OPTIONS = { "-s", "-mode", "nf", "-stepwise", "-maxsteps", "10000",
+      "-maxsize", "4096" };
+
+  private DefinitionFolder() {
+  }
+
+  /**
+   * すべての定義を部分評価する。定義をコンパイルした後に呼び出す。
+   * @param list マクロ関数のリスト
+   * @param tokenizer トークン列への変換に用いるTokenizer
+   */
+  static void fold(List<MacroCombinator> list, Tokenizer tokenizer) {
+    Options options = Options.parse(OPTIONS);
+    int[] variables = new int[MAX_ARGS];
+    for (int i = 0; i < MAX_ARGS; i++) {
+      variables[i] = tokenizer.tokenize("p_" + i)[0];
+    }
+    for (int token = 0; token < list.size(); token++) {
+      MacroCombinator macro = list.get(token);
+      if (!macro.nativeName.isEmpty() || !macro.isBalanced()) {
+        continue;
+      }
+      int from = macro.argsCount == 0 ? 1 : macro.argsCount;
+      int to = macro.argsCount == 0 ? MAX_ARGS : Math.min(macro.argsCount, MAX_ARGS);
+      for (int n = from; n <= to; n++) {
+        int[] tokens = new int[n + 1];
+        tokens[0] = token;
+        System.arraycopy(variables, 0, tokens, 1, n);
+        Context context = new Context(options, new PrintWriter(new StringWriter()));
+        int[] result = normalize(tokens, context);
+        if (result == null) {
+          // 変数を増やしても正規形にならないものとみなす
+          break;
+        }
+        String format = toFormat(result, variables, n);
+        if (format != null) {
+          if (1 < context.reductionCount) {
+            setFolded(macro, n, format, context, tokenizer);
+          }
+          break;
+        }
+      }
+      if (macro.getFolded() == null && macro.argsCount == 0) {
+        Context context = new Context(options, new PrintWriter(new StringWriter()));
+        int[] result = normalize(new int[] { token }, context);
+        if (result != null && 1 < context.reductionCount) {
+          StringBuilder sb = new StringBuilder();
+          tokenizer.appendTo(sb, result, 0, result.length);
+          setFolded(macro, 0, new String(sb), context, tokenizer);
+        }
+      }
+    }
+  }
+
+  /**
+   * トークン列を正規形まで計算する。
+   * @param tokens トークン列
+   * @param context 計算の設定と状態
+   * @return 正規形のトークン列。制限を超えた場合はnull
+   */
+  private static int[] normalize(int[] tokens, Context context) {
+    Code code = new Code(tokens, context);
+    try {
+      code.calculate();
+    } catch (BudgetExceededException e) {
+      return null;
+    }
+    return code.getTokens();
+  }
+
+  /**
+   * 変数と括弧のみからなるトークン列を整形フォーマットに変換する。
+   * @param tokens トークン列
+   * @param variables 引数の代わりの変数のトークン
+   * @param count 適用した変数の数
+   * @return 整形フォーマット。変数と括弧以外を含む場合はnull
+   */
+  private static String toFormat(int[] tokens, int[] variables, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int token : tokens) {
+      if (token == Tokenizer.OPEN) {
+        sb.append('(');
+      } else if (token == Tokenizer.CLOSE) {
+        sb.append(')');
+      } else {
+        int index = 0;
+        while (index < count && variables[index] != token) {
+          index++;
+        }
+        if (index == count) {
+          return null;
+        }
+        sb.append((char) ('0' + index));
+      }
+    }
+    return new String(sb);
+  }
+
+  private static void setFolded(MacroCombinator macro, int argsCount, String format, Context context,
+      Tokenizer tokenizer) {
+    MacroCombinator folded = new MacroCombinator(macro.name, String.valueOf(argsCount), format);
+    folded.compile(tokenizer);
+    macro.setFolded(folded, (int) Math.min(Integer.MAX_VALUE, context.reductionCount - 1));
+  }
+}
@@ -0,0 +1,172 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Combinators.csvをコンパイルした結果をバイナリ形式で保存し、次回の起動時に読み込むクラス。<br>
+ * CSVの更新日時と大きさが保存時と同じ場合のみ読み込み、CSVの解析と整形フォーマットのCLTermの数え直し、
+ * 定義の部分評価を省く。
+ * 整形フォーマットの分解とNativeCombinatorの検索は、マクロ関数を最初に使うときに行う。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 形式: 数値はすべてビッグエンディアン。<br>
+ * <ul>
+ *   <li><p> ヘッダ   - "CLCS"とバージョンの1バイト、CSVの更新日時(long)、CSVのバイト数(long)、マクロ関数の数(int)。</p></li>
+ *   <li><p> 定義     - 関数名、引数の数(int)、整形フォーマット、NativeCombinatorの名前、
+ *                      一番外のCLTermの数(int)、括弧の数が等しいかどうか(byte)、
+ *                      部分評価した定義があるかどうか(byte)。
+ *                      ある場合は続けて、部分評価した定義の引数の数(int)、整形フォーマット、
+ *                      一番外のCLTermの数(int)、1回にまとめた簡約の回数(int)。
+ *                      文字列はUTF-8のバイト数(int)とバイト列。</p></li>
+ *   <li><p> 末尾     - ヘッダと定義のCRC32(int)。</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class DefinitionSnapshot {
+  static final byte[] MAGIC = { 'C', 'L', 'C', 'S', 2 };
+
+  private DefinitionSnapshot() {
+  }
+
+  /**
+   * スナップショットを読み込む。ファイルはメモリにマップして読み込む。
+   * @param snapshot スナップショットのファイル
+   * @param csv 定義ファイル
+   * @return マクロ関数のリスト。ファイルが存在しない、壊れている、またはCSVが変更されている場合はnull
+   */
+  static List<MacroCombinator> read(File snapshot, File csv) {
+    if (!snapshot.isFile() || !csv.isFile()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < MAGIC.length + 8 + 8 + 4 + 4 || Integer.MAX_VALUE < size) {
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      for (byte b : MAGIC) {
+        if (buffer.get() != b) {
+          return null;
+        }
+      }
+      if (buffer.getLong() != csv.lastModified() || buffer.getLong() != csv.length()) {
+        return null;
+      }
+      int bodyLength = (int) size - 4;
+      ByteBuffer body = buffer.duplicate();
+      body.position(0).limit(bodyLength);
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if ((int) crc.getValue() != buffer.getInt(bodyLength)) {
+        return null;
+      }
+      int count = buffer.getInt();
+      List<MacroCombinator> list = new ArrayList<>(Math.max(0, Math.min(count, bodyLength)));
+      for (int i = 0; i < count; i++) {
+        String name = getString(buffer);
+        int argsCount = buffer.getInt();
+        String format = getString(buffer);
+        String nativeName = getString(buffer);
+        int termCount = buffer.getInt();
+        boolean balanced = buffer.get() != 0;
+        MacroCombinator macro = new MacroCombinator(name, argsCount, format, nativeName, termCount, balanced);
+        if (buffer.get() != 0) {
+          int foldedArgsCount = buffer.getInt();
+          String foldedFormat = getString(buffer);
+          int foldedTermCount = buffer.getInt();
+          MacroCombinator folded = new MacroCombinator(name, foldedArgsCount, foldedFormat, "", foldedTermCount, true);
+          macro.setFolded(folded, buffer.getInt());
+        }
+        list.add(macro);
+      }
+      return buffer.position() == bodyLength ? list : null;
+    } catch (IOException | RuntimeException e) {
+      // 読み込めない場合はCSVから読み直す
+      return null;
+    }
+  }
+
+  /**
+   * スナップショットを書き出す。<br>
+   * 読み込み中のプロセスが書きかけのファイルを読まないよう、一時ファイルに書き出してから置き換える。
+   * 書き出しに失敗してもCSVから読み込めるため、エラーは無視する。
+   * @param snapshot スナップショットのファイル
+   * @param csv 定義ファイル
+   * @param list コンパイル済みのマクロ関数のリスト
+   */
+  static void write(File snapshot, File csv, List<MacroCombinator> list) {
+    File temp = null;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(MAGIC);
+      out.writeLong(csv.lastModified());
+      out.writeLong(csv.length());
+      out.writeInt(list.size());
+      for (MacroCombinator macro : list) {
+        putString(out, macro.name);
+        out.writeInt(macro.argsCount);
+        putString(out, macro.format);
+        putString(out, macro.nativeName);
+        out.writeInt(macro.getTermCount());
+        out.writeByte(macro.isBalanced() ? 1 : 0);
+        MacroCombinator folded = macro.getFolded();
+        out.writeByte(folded != null ? 1 : 0);
+        if (folded != null) {
+          out.writeInt(folded.argsCount);
+          putString(out, folded.format);
+          out.writeInt(folded.getTermCount());
+          out.writeInt(folded.getCollapsedCount());
+        }
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeInt((int) crc.getValue());
+      out.flush();
+
+      File dir = snapshot.getAbsoluteFile().getParentFile();
+      temp = File.createTempFile(snapshot.getName(), ".tmp", dir);
+      Files.write(temp.toPath(), bytes.toByteArray());
+      Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || buffer.remaining() < length) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,816 @@
+package main;
+
+import static main.TermArena.APP;
+import static main.TermArena.GROUP;
+import static main.TermArena.LEAF;
+import static main.TermArena.NIL;
+import static main.TermArena.SLOT;
+import static main.TermArena.UNEVALUATED;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * グラフ簡約によるコンビネータ論理計算を行うクラス。<br>
+ * Codeと同じ定義、同じ順序で計算を行うが、項を関数適用のグラフとして保持するため、
+ * マクロ関数が引数を複製しても文字列のコピーは発生せず、同じノードを共有する。
+ * 共有された括弧の項は一度だけ計算され(call-by-need)、結果は他の箇所でも再利用される。
+ * 正規形まで計算する場合も引数をグラフのまま計算し、共有された引数は一度だけ正規形にする。
+ * ノードはTermArenaにIDとして保持し、文字列への変換は出力時にのみ行う。
+ * @author Shinichi Oouchi
+ */
+final class GraphCode implements TermArena.Roots {
+  /**
+   * 不要なノードの回収を始めるノードの数の最小値。
+   */
+  private static final int MIN_COLLECT_SIZE = 1 << 16;
+
+  /**
+   * 中断した時点の項を文字列にする場合のトークンの数の上限。
+   */
+  private static final long MAX_PARTIAL_SIZE = 1 << 24;
+
+  /**
+   * ノードを保持する領域。
+   */
+  private final TermArena arena;
+
+  /**
+   * テンプレートをまだ変換していないことを表すID。
+   */
+  private static final int UNBUILT = -2;
+
+  /**
+   * マクロ関数ごとの整形フォーマットをグラフに変換したテンプレートのID。
+   * 元の定義をトークンの2倍、部分評価した定義をその次の位置に置き、最初に使うまではUNBUILTとする。
+   */
+  private final int[] templates;
+
+  /**
+   * 計算対象の項のID。
+   */
+  private int term;
+
+  /**
+   * 計算結果。
+   */
+  private Spine result;
+
+  /**
+   * 計算中の項。括弧の中を計算している間は外側の項も含まれる。
+   */
+  private final List<Spine> spines = new ArrayList<>();
+
+  /**
+   * 引数を正規形にしている項。引数の中を計算している間は外側の項も含まれる。
+   */
+  private final List<ArgumentFrame> frames = new ArrayList<>();
+
+  /**
+   * 括弧と0引数のマクロ関数のノードごとに記録した正規形。
+   */
+  private final Map<Integer, NormalForm> normalForms = new HashMap<>();
+
+  /**
+   * 正規形にした部分を文字列にした場合のトークンの数。framesのすべての項の組み立てたノードの合計。<br>
+   * 共有されたノードは文字列にすると複製されるため、ノードの数とは別に数えて項の大きさの上限と比べる。
+   */
+  private long normalSize;
+
+  /**
+   * 次に不要なノードの回収を行うノードの数。
+   */
+  private int collectSize;
+
+  /**
+   * 不要なノードの回収を始めるノードの数の上限。
+   * 項の大きさに制限がある場合は、回収しきれていないノードを項の大きさとして数えないようにする。
+   */
+  private final int maxCollectSize;
+
+  /**
+   * 括弧の中にもぐっている数。
+   */
+  private int nestCount = 0;
+
+  /**
+   * 計算の設定と状態。
+   */
+  private final Context context;
+
+  /**
+   * 項の大きさの上限。指定がない場合はLong.MAX_VALUE。
+   */
+  private final long maxSize;
+
+  /**
+   * コンストラクタ。
+   * @param string コンビネータ論理文字列
+   * @param aContext 計算の設定と状態
+   */
+  GraphCode(String string, Context aContext) {
+    context = aContext;
+    maxSize = 0 < context.options.maxSize ? context.options.maxSize : Long.MAX_VALUE;
+    maxCollectSize = (int) Math.min(Integer.MAX_VALUE, maxSize);
+    collectSize = Math.min(maxCollectSize, MIN_COLLECT_SIZE);
+    arena = new TermArena(context.options.offHeapSwitch);
+    templates = new int[Code.macroFunctionList.size() * 2];
+    Arrays.fill(templates, UNBUILT);
+    term = parse(string, null);
+  }
+
+  /**
+   * マクロ関数のテンプレートを返す。最初に使うときに整形フォーマットをグラフに変換する。
+   * @param token マクロ関数のトークン
+   * @param macro マクロ関数
+   * @return テンプレートのID。整形フォーマットが空の場合はNIL
+   */
+  private int getTemplate(int token, MacroCombinator macro) {
+    int index = macro == context.tokenizer.getMacro(token) ? token * 2 : token * 2 + 1;
+    if (templates[index] == UNBUILT) {
+      templates[index] = parse(macro.format, macro);
+    }
+    return templates[index];
+  }
+
+  /**
+   * コンビネータ論理文字列をグラフに変換する。<br>
+   * CLTermの区切り方はCodeと同じものを用いる。
+   * @param string 変換する文字列
+   * @param macro nullでない場合、マクロ関数の引数の番号を引数スロットとして扱う
+   * @return 変換したノードのID。空文字列の場合はNIL
+   */
+  private int parse(String string, MacroCombinator macro) {
+    int[] tokens = context.tokenizer.tokenize(string);
+    return parse(tokens, 0, tokens.length, macro);
+  }
+
+  /**
+   * トークン列をグラフに変換する。<br>
+   * 括弧の中へは再帰せず、外側の変換途中のノードと位置をスタックに積んで変換する。
+   * @param tokens トークン列
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   * @param macro nullでない場合、マクロ関数の引数の番号を引数スロットとして扱う
+   * @return 変換したノードのID。空の場合はNIL
+   */
+  private int parse(int[] tokens, int from, int to, MacroCombinator macro) {
+    // 外側の変換途中のノード、終了位置、括弧の次の位置を3つずつ積む
+    int[] stack = new int[3 * 8];
+    int depth = 0;
+    int node = NIL;
+    int index = from;
+    int end = to;
+    while (true) {
+      int clterm;
+      if (index < end) {
+        int token = tokens[index];
+        int next = Tokenizer.skipCLTerm(tokens, index, end);
+        if (token == Tokenizer.OPEN) {
+          // 一番外に存在する括弧を削除して中身を変換する
+          if (stack.length == depth) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = node;
+          stack[depth++] = end;
+          stack[depth++] = next;
+          node = NIL;
+          end = Math.max(index + 1, next - 1);
+          index++;
+          continue;
+        }
+        String name = context.tokenizer.getName(token);
+        if (macro != null && name.length() == 1 && macro.isSlot(name.charAt(0))) {
+          clterm = arena.slot(name.charAt(0) - '0');
+        } else {
+          clterm = arena.leaf(token);
+        }
+        index = next;
+      } else if (0 < depth) {
+        clterm = arena.group(node);
+        index = stack[--depth];
+        end = stack[--depth];
+        node = stack[--depth];
+      } else {
+        return node;
+      }
+      node = node == NIL ? clterm : arena.app(node, clterm);
+    }
+  }
+
+  /**
+   * テンプレートの引数スロットを引数のノードで置き換える。<br>
+   * スロットを含まない部分はテンプレートのノードをそのまま共有する。
+   * @param template テンプレートのID
+   * @param args 引数のID
+   * @param argsIndex 最初の引数の位置。2番目以降の引数はargsの先頭に向かって並ぶ
+   * @return 置き換えたノードのID
+   */
+  private int instantiate(int template, int[] args, int argsIndex) {
+    if (template == NIL || !arena.hasSlot(template)) {
+      return template;
+    }
+    switch (arena.kind(template)) {
+    case SLOT:
+      return args[argsIndex - arena.a(template)];
+    case APP:
+      int function = instantiate(arena.a(template), args, argsIndex);
+      return arena.app(function, instantiate(arena.b(template), args, argsIndex));
+    default:
+      return arena.group(instantiate(arena.a(template), args, argsIndex));
+    }
+  }
+
+  /**
+   * 項を先頭のコンビネータが引数不足に直面するまで計算する。<br>
+   * 先頭の括弧の中の計算は再帰せずに、計算中の項をspinesに積んで行う。
+   * 括弧の中の計算を終えた場合は結果を括弧のノードに記録し、外側の項の計算に戻る。
+   * @param node 計算する項のID
+   * @return 計算結果
+   */
+  private Spine reduce(int node) {
+    spines.add(new Spine(node));
+    while (true) {
+      if (collectSize < arena.size()) {
+        arena.collect(this);
+        collectSize = Math.min(maxCollectSize, Math.max(MIN_COLLECT_SIZE, arena.size() * 2));
+      }
+      context.checkBudget(arena.size());
+      if (context.stats != null) {
+        context.stats.observe(arena.size(), nestCount);
+      }
+      Spine spine = spines.get(spines.size() - 1);
+      context.console.printCode(spine, nestCount);
+      context.stepCount++;
+      boolean loopSwitch = spine.step();
+      context.console.waitCalculate();
+      while (!loopSwitch) {
+        spines.remove(spines.size() - 1);
+        if (spines.isEmpty()) {
+          return spine;
+        }
+        nestCount--;
+        if (context.profile != null) {
+          context.profile.leave();
+        }
+        Spine outer = spines.get(spines.size() - 1);
+        // 括弧の中の計算中に不要なノードの回収が行われても、outer.headは新しいIDに書き換えられている
+        arena.setValue(outer.head, spine.toNode());
+        loopSwitch = outer.resume();
+        context.console.waitCalculate();
+        spine = outer;
+      }
+    }
+  }
+
+  @Override
+  public void remap(IntUnaryOperator operator) {
+    term = operator.applyAsInt(term);
+    for (int i = 0; i < templates.length; i++) {
+      if (0 <= templates[i]) {
+        templates[i] = operator.applyAsInt(templates[i]);
+      }
+    }
+    for (Spine spine : spines) {
+      spine.remap(operator);
+    }
+    for (ArgumentFrame frame : frames) {
+      frame.remap(operator);
+    }
+    if (!normalForms.isEmpty()) {
+      Map<Integer, NormalForm> remapped = new HashMap<>();
+      for (Map.Entry<Integer, NormalForm> entry : normalForms.entrySet()) {
+        NormalForm normalForm = entry.getValue();
+        normalForm.node = operator.applyAsInt(normalForm.node);
+        remapped.put(operator.applyAsInt(entry.getKey()), normalForm);
+      }
+      normalForms.clear();
+      normalForms.putAll(remapped);
+    }
+  }
+
+  /**
+   * 弱頭部正規形まで計算した項の引数を、左から順に正規形にする。<br>
+   * 括弧で括られた引数と0引数のマクロ関数は、弱頭部正規形まで計算してから、その引数を同じように正規形にする。
+   * 正規形はノードごとにnormalFormsに記録し、同じノードを共有する引数では計算せずに再利用する。
+   * 引数の中へは再帰せずに、組み立て途中の項をframesに積んで行う。
+   * 引数の正規形が1つのCLTermになった場合は括弧を取り除く。
+   * 正規形にした部分を文字列にした場合のトークンの数も、項の大きさの上限と比べる。
+   * @param spine 弱頭部正規形まで計算した項
+   * @return 正規形のノードのID
+   */
+  private int normalize(Spine spine) {
+    ArgumentFrame top = new ArgumentFrame(NIL);
+    normalSize = 0;
+    top.start(spine);
+    frames.add(top);
+    while (true) {
+      ArgumentFrame frame = frames.get(frames.size() - 1);
+      Spine current = frame.spine;
+      context.checkBudget(normalSize);
+      if (0 < current.count) {
+        int arg = current.args[--current.count];
+        NormalForm normalForm = normalForms.get(arg);
+        if (normalForm != null) {
+          frame.append(normalForm.node, normalForm.size);
+        } else if (isNormalizable(arg)) {
+          nestCount++;
+          if (context.stats != null) {
+            context.stats.descend();
+          }
+          if (context.profile != null) {
+            context.profile.enter(Profile.ARGUMENT,
+                arena.kind(current.head) == LEAF ? arena.a(current.head) : Tokenizer.OPEN);
+          }
+          // 弱頭部正規形の計算中に不要なノードの回収が行われても、inner.keyは新しいIDに書き換えられている
+          ArgumentFrame inner = new ArgumentFrame(arg);
+          frames.add(inner);
+          if (arena.kind(arg) == LEAF) {
+            inner.start(reduce(arg));
+          } else if (arena.value(arg) == UNEVALUATED) {
+            Spine value = reduce(arena.a(arg));
+            arena.setValue(inner.key, value.toNode());
+            inner.start(value);
+          } else {
+            inner.start(new Spine(arena.value(arg)));
+          }
+        } else {
+          frame.append(arg, countTokens(arg, maxSize));
+        }
+        continue;
+      }
+      frames.remove(frames.size() - 1);
+      if (frame.key == NIL) {
+        return frame.built;
+      }
+      int node = frame.built;
+      long size = frame.size;
+      if (node == NIL || arena.kind(node) == APP) {
+        node = arena.group(node);
+        size += 2;
+      }
+      normalForms.put(frame.key, new NormalForm(node, size));
+      nestCount--;
+      if (context.profile != null) {
+        context.profile.leave();
+      }
+      // 組み立てたトークンの数は外側の項に移して数え直す
+      normalSize -= frame.size;
+      frames.get(frames.size() - 1).append(node, size);
+    }
+  }
+
+  /**
+   * ノードを文字列にした場合のトークンの数を返す。共有されたノードは重複して数えるため、上限を超えた時点で数えるのをやめる。
+   * @param node ノードのID
+   * @param limit 数える上限
+   */
+  private long countTokens(int node, long limit) {
+    long count = 0;
+    int[] stack = new int[16];
+    int depth = 0;
+    stack[depth++] = node;
+    while (0 < depth && count <= limit) {
+      node = stack[--depth];
+      if (node == NIL) {
+        continue;
+      }
+      if (stack.length - 2 <= depth) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      switch (arena.kind(node)) {
+      case APP:
+        stack[depth++] = arena.a(node);
+        stack[depth++] = arena.b(node);
+        break;
+      case GROUP:
+        count += 2;
+        stack[depth++] = arena.a(node);
+        break;
+      default:
+        count++;
+        break;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 計算を中断した時点の項を文字列にした場合のトークンの数を返す。MAX_PARTIAL_SIZEを超えた時点で数えるのをやめる。
+   */
+  private long countPartialTokens() {
+    long count = 0;
+    for (int i = 0; i < spines.size(); i++) {
+      Spine spine = spines.get(i);
+      if (i == spines.size() - 1) {
+        count += countTokens(spine.head, MAX_PARTIAL_SIZE - count);
+      }
+      for (int j = 0; j < spine.count && count <= MAX_PARTIAL_SIZE; j++) {
+        count += countTokens(spine.args[j], MAX_PARTIAL_SIZE - count);
+      }
+    }
+    for (ArgumentFrame frame : frames) {
+      if (frame.spine != null) {
+        count += frame.size;
+        for (int j = 0; j < frame.spine.count && count <= MAX_PARTIAL_SIZE; j++) {
+          count += countTokens(frame.spine.args[j], MAX_PARTIAL_SIZE - count);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 計算を中断した時点の項を、例外の途中の項に補う。
+   * @param e 計算が制限を超えた例外
+   */
+  private void wrapPartialCode(BudgetExceededException e) {
+    // 外側の項の先頭は計算中の括弧なので、引数のみを補う
+    StringBuilder sb = new StringBuilder();
+    for (int i = spines.size() - 1; 0 <= i; i--) {
+      Spine spine = spines.get(i);
+      sb.setLength(0);
+      if (i == spines.size() - 1) {
+        appendTo(sb, spine.head);
+      }
+      spine.appendArgsTo(sb);
+      e.wrap(new String(sb));
+    }
+    // 引数を正規形にしている項は、正規形にした部分と残りの引数で補う
+    for (int i = frames.size() - 1; 0 <= i; i--) {
+      ArgumentFrame frame = frames.get(i);
+      if (frame.spine == null) {
+        continue;
+      }
+      sb.setLength(0);
+      appendTo(sb, frame.built);
+      String prefix = new String(sb);
+      sb.setLength(0);
+      frame.spine.appendArgsTo(sb);
+      e.wrap(prefix, new String(sb));
+    }
+  }
+
+  /**
+   * 正規形にする際に中を計算する引数の場合trueを返す。空でない括弧と、0引数のマクロ関数が該当する。<br>
+   * 0引数かどうかは元の定義で判断する。
+   * @param node 引数のID
+   */
+  private boolean isNormalizable(int node) {
+    if (arena.kind(node) == GROUP) {
+      return arena.a(node) != NIL;
+    }
+    MacroCombinator macro = arena.kind(node) == LEAF ? context.tokenizer.getMacro(arena.a(node)) : null;
+    return macro != null && macro.argsCount == 0;
+  }
+
+  /**
+   * コンビネータ論理で計算を行う。
+   * @throws BudgetExceededException 計算が制限を超えた場合。中断した時点の項を持つ
+   */
+  final void calculate() {
+    if (context.trace != null) {
+      int[] tokens = context.tokenizer.tokenize(getCode());
+      context.trace.begin(tokens, 0, tokens.length);
+    }
+    try {
+      Spine spine = reduce(term);
+      if (context.options.normalSwitch) {
+        spine = new Spine(normalize(spine));
+      }
+      result = spine;
+    } catch (BudgetExceededException e) {
+      // 共有されたノードは文字列にすると複製されるため、大きくなりすぎる場合は途中の項を補わない
+      if (countPartialTokens() <= MAX_PARTIAL_SIZE) {
+        wrapPartialCode(e);
+      }
+      spines.clear();
+      frames.clear();
+      throw e;
+    } finally {
+      if (context.trace != null) {
+        context.trace.end();
+      }
+    }
+  }
+
+  /**
+   * コードを返す。
+   * @return 計算後の場合は計算結果、計算前の場合は保持するCLCode
+   */
+  final String getCode() {
+    StringBuilder sb = new StringBuilder();
+    if (result != null) {
+      result.appendTo(sb);
+    } else {
+      appendTo(sb, term);
+    }
+    return new String(sb);
+  }
+
+  /**
+   * 書き出しのスタックで閉じ括弧を表す値。
+   */
+  private static final int CLOSE_MARK = NIL - 1;
+
+  /**
+   * ノードを文字列としてsbに書き出す。<br>
+   * 再帰せずに、これから書き出すノードをスタックに積んでたどる。
+   * @param sb 出力先
+   * @param node ノードのID
+   */
+  private void appendTo(StringBuilder sb, int node) {
+    int[] stack = new int[16];
+    int count = 0;
+    stack[count++] = node;
+    while (0 < count) {
+      node = stack[--count];
+      if (node == CLOSE_MARK) {
+        sb.append(')');
+        continue;
+      }
+      if (node == NIL) {
+        continue;
+      }
+      // 引数は後ろから積み、先頭の項の後に前から取り出す
+      while (arena.kind(node) == APP) {
+        if (stack.length - 2 <= count) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[count++] = arena.b(node);
+        node = arena.a(node);
+      }
+      switch (arena.kind(node)) {
+      case LEAF:
+        sb.append(context.tokenizer.getName(arena.a(node)));
+        break;
+      case GROUP:
+        if (stack.length - 2 <= count) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        sb.append('(');
+        stack[count++] = CLOSE_MARK;
+        stack[count++] = arena.a(node);
+        break;
+      default:
+        sb.append(arena.a(node));
+        break;
+      }
+    }
+  }
+
+  /**
+   * 先頭の項と、それに続く引数のスタックで表した計算中の項。
+   */
+  final class Spine {
+    /**
+     * 先頭の項のID。項が空の場合はNIL。
+     */
+    private int head = NIL;
+
+    /**
+     * 先頭の項に続く引数のID。args[count - 1]が最初の引数となる。
+     */
+    private int[] args = new int[16];
+
+    /**
+     * 引数の数。
+     */
+    private int count = 0;
+
+    Spine(int node) {
+      unwind(node);
+    }
+
+    /**
+     * 関数適用を分解し、先頭の項と引数のスタックに展開する。
+     * @param node 展開するノードのID
+     */
+    private void unwind(int node) {
+      while (node == NIL && 0 < count) {
+        node = args[--count];
+      }
+      while (node != NIL && arena.kind(node) == APP) {
+        if (args.length == count) {
+          args = Arrays.copyOf(args, count * 2);
+        }
+        args[count++] = arena.b(node);
+        node = arena.a(node);
+      }
+      head = node;
+    }
+
+    /**
+     * 先頭の項を1ステップ計算する。
+     * @return 計算を続けられる場合はtrue
+     */
+    private boolean step() {
+      if (head == NIL) {
+        return false;
+      }
+      if (arena.kind(head) == LEAF) {
+        int token = arena.a(head);
+        MacroCombinator macro = context.tokenizer.getMacro(token, context.options.foldSwitch);
+        if (macro != null && count < macro.argsCount) {
+          // 部分評価で引数の数が増えた定義の引数が足りない場合は、元の定義で計算する
+          macro = context.tokenizer.getMacro(token);
+        }
+        if (macro == null || count < macro.argsCount) {
+          // 変数、未定義のコンビネータ、または引数が足りない場合
+          return false;
+        }
+        if (context.isReductionLimit()) {
+          context.exceedReductions(arena.size());
+        }
+        int node = instantiate(getTemplate(token, macro), args, count - 1);
+        count -= macro.argsCount;
+        context.reductionCount++;
+        context.collapsedCount += macro.getCollapsedCount();
+        if (context.stats != null) {
+          context.stats.reduce(token);
+        }
+        if (context.profile != null) {
+          context.profile.reduce(token);
+        }
+        unwind(node);
+        return head != NIL;
+      }
+      if (arena.kind(head) == GROUP) {
+        if (arena.value(head) == UNEVALUATED) {
+          int inner = arena.a(head);
+          if (inner != NIL) {
+            // 括弧の中の計算を積み、結果はreduceが記録する
+            nestCount++;
+            if (context.stats != null) {
+              context.stats.descend();
+            }
+            if (context.profile != null) {
+              context.profile.enter(Profile.BRACKET, 0);
+            }
+            spines.add(new Spine(inner));
+            return true;
+          }
+          arena.setValue(head, NIL);
+        }
+        return resume();
+      }
+      return false;
+    }
+
+    /**
+     * 計算済みの先頭の括弧を計算結果に置き換える。
+     * @return 計算を続けられる場合はtrue
+     */
+    private boolean resume() {
+      int value = arena.value(head);
+      if (value == NIL) {
+        return false;
+      }
+      unwind(value);
+      return true;
+    }
+
+    /**
+     * 先頭の項と引数を関数適用のノードに戻す。
+     * @return ノードのID
+     */
+    private int toNode() {
+      int node = head;
+      for (int i = count - 1; 0 <= i; i--) {
+        node = arena.app(node, args[i]);
+      }
+      return node;
+    }
+
+    /**
+     * 保持しているIDを書き換える。
+     * @param operator IDを受け取り、新しいIDを返す関数
+     */
+    private void remap(IntUnaryOperator operator) {
+      head = operator.applyAsInt(head);
+      for (int i = 0; i < count; i++) {
+        args[i] = operator.applyAsInt(args[i]);
+      }
+    }
+
+    /**
+     * CLTermの数を返す。
+     */
+    int size() {
+      return (head == NIL ? 0 : 1) + count;
+    }
+
+    /**
+     * 計算中の項を文字列としてsbに書き出す。
+     * @param sb 出力先
+     */
+    void appendTo(StringBuilder sb) {
+      GraphCode.this.appendTo(sb, head);
+      appendArgsTo(sb);
+    }
+
+    /**
+     * 先頭の項に続く引数を文字列としてsbに書き出す。
+     * @param sb 出力先
+     */
+    void appendArgsTo(StringBuilder sb) {
+      for (int i = count - 1; 0 <= i; i--) {
+        GraphCode.this.appendTo(sb, args[i]);
+      }
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      appendTo(sb);
+      return new String(sb);
+    }
+  }
+
+  /**
+   * 引数を正規形にしている項。先頭の項に、正規形にした引数を順に続けて組み立てる。
+   */
+  private final class ArgumentFrame {
+    /**
+     * 正規形を記録する括弧、または0引数のマクロ関数のノードのID。一番外の項の場合はNIL。
+     */
+    private int key;
+
+    /**
+     * 弱頭部正規形まで計算した項。まだ正規形にしていない引数が残る。弱頭部正規形を計算している間はnull。
+     */
+    private Spine spine;
+
+    /**
+     * 先頭の項に、正規形にした引数を続けたノードのID。
+     */
+    private int built = NIL;
+
+    /**
+     * builtを文字列にした場合のトークンの数。
+     */
+    private long size = 0;
+
+    ArgumentFrame(int aKey) {
+      key = aKey;
+    }
+
+    /**
+     * 弱頭部正規形まで計算した項の引数を、正規形にし始める。
+     * @param aSpine 弱頭部正規形まで計算した項
+     */
+    private void start(Spine aSpine) {
+      spine = aSpine;
+      built = aSpine.head;
+      size = countTokens(built, maxSize);
+      normalSize += size;
+    }
+
+    /**
+     * 正規形にした引数を続ける。
+     * @param node 引数のID
+     * @param aSize 引数を文字列にした場合のトークンの数
+     */
+    private void append(int node, long aSize) {
+      built = arena.app(built, node);
+      size += aSize;
+      normalSize += aSize;
+    }
+
+    /**
+     * 保持しているIDを書き換える。
+     * @param operator IDを受け取り、新しいIDを返す関数
+     */
+    private void remap(IntUnaryOperator operator) {
+      key = operator.applyAsInt(key);
+      built = operator.applyAsInt(built);
+      if (spine != null) {
+        spine.remap(operator);
+      }
+    }
+  }
+
+  /**
+   * 括弧または0引数のマクロ関数のノードに記録する正規形。
+   */
+  private static final class NormalForm {
+    /**
+     * 正規形のノードのID。
+     */
+    private int node;
+
+    /**
+     * 正規形を文字列にした場合のトークンの数。
+     */
+    private final long size;
+
+    NormalForm(int aNode, long aSize) {
+      node = aNode;
+      size = aSize;
+    }
+  }
+}
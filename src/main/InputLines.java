@@ -0,0 +1,286 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 入力ファイルまたは標準入力から、CLCodeを1行ずつ読み込むクラス。<br>
+ * ファイルはメモリにマップし、行の区切りをバイト列のまま探す。
+ * ASCII文字のみの行は文字列に変換せず、マップしたバイト列をそのまま参照するCharSequenceとして返す。
+ * ASCII以外の文字を含む行のみ、UTF-8として文字列に変換する。
+ * 返した行は後から読み込む行によって書き換えられないため、計算が終わるまで保持してよい。
+ * 先頭が"#"の行と空行は読み飛ばす。行の区切りは"\n"、"\r\n"、"\r"のいずれか。
+ * @author Shinichi Oouchi
+ */
+final class InputLines implements Iterator<CharSequence>, Closeable {
+  /**
+   * 一度にメモリにマップするバイト数の最小値。行がこれより長い場合は行全体をマップする。
+   */
+  private static final int MAP_SIZE = 1 << 26;
+
+  /**
+   * 標準入力から読み込むバイト列の領域の最小の大きさ。
+   */
+  private static final int READ_SIZE = 1 << 16;
+
+  /**
+   * 入力ファイル。標準入力から読み込む場合はnull。
+   */
+  private final FileChannel file;
+
+  /**
+   * 標準入力。ファイルから読み込む場合はnull。
+   */
+  private final ReadableByteChannel stream;
+
+  /**
+   * 読み込んだバイト列。window.limit()までが読み込み済みとなる。
+   */
+  private ByteBuffer window;
+
+  /**
+   * windowの先頭のファイル中の位置。
+   */
+  private long windowStart = 0;
+
+  /**
+   * まだ返していない行の開始位置。
+   */
+  private int lineStart = 0;
+
+  /**
+   * 行の区切りを探している位置。
+   */
+  private int scan = 0;
+
+  /**
+   * 直前の行が"\r"で終わったかどうか。続く"\n"は読み飛ばす。
+   */
+  private boolean skipLineFeed = false;
+
+  /**
+   * 入力の終わりまで読み込んだかどうか。
+   */
+  private boolean endOfInput = false;
+
+  /**
+   * 次に返す行。まだ探していない場合はnull。
+   */
+  private CharSequence nextLine;
+
+  private InputLines(FileChannel aFile, ReadableByteChannel aStream) {
+    file = aFile;
+    stream = aStream;
+    window = ByteBuffer.allocate(file != null ? 0 : READ_SIZE);
+    window.limit(0);
+  }
+
+  /**
+   * ファイルから読み込む。
+   * @param aFile 入力ファイル
+   * @return 読み込んだ行
+   * @throws IOException ファイルを開けなかった場合
+   */
+  static InputLines open(File aFile) throws IOException {
+    return new InputLines(FileChannel.open(aFile.toPath(), StandardOpenOption.READ), null);
+  }
+
+  /**
+   * ストリームから読み込む。
+   * @param in 入力ストリーム
+   * @return 読み込んだ行
+   */
+  static InputLines open(InputStream in) {
+    return new InputLines(null, Channels.newChannel(in));
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (nextLine == null) {
+      try {
+        nextLine = readLine();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return nextLine != null;
+  }
+
+  @Override
+  public CharSequence next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    CharSequence line = nextLine;
+    nextLine = null;
+    return line;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (file != null) {
+      file.close();
+    }
+  }
+
+  /**
+   * 読み飛ばさない次の行を返す。
+   * @return 行。入力の終わりに達した場合はnull
+   */
+  private CharSequence readLine() throws IOException {
+    while (true) {
+      int end = window.limit();
+      for (; scan < end; scan++) {
+        byte b = window.get(scan);
+        if (skipLineFeed) {
+          skipLineFeed = false;
+          if (b == '\n') {
+            lineStart = scan + 1;
+            continue;
+          }
+        }
+        if (b == '\n' || b == '\r') {
+          int start = lineStart;
+          skipLineFeed = b == '\r';
+          lineStart = scan + 1;
+          if (isCode(start, scan)) {
+            return toLine(start, scan++);
+          }
+        }
+      }
+      if (endOfInput) {
+        int start = lineStart;
+        lineStart = end;
+        return isCode(start, end) ? toLine(start, end) : null;
+      }
+      readMore();
+    }
+  }
+
+  /**
+   * startからendまでの行が読み飛ばす行でない場合trueを返す。
+   */
+  private boolean isCode(int start, int end) {
+    return start < end && window.get(start) != '#';
+  }
+
+  /**
+   * 読み込んだバイト列のうち、startからendまでを行として返す。
+   */
+  private CharSequence toLine(int start, int end) {
+    ByteBuffer bytes = window.duplicate();
+    bytes.limit(end).position(start);
+    bytes = bytes.slice();
+    for (int i = 0; i < bytes.limit(); i++) {
+      if (bytes.get(i) < 0) {
+        try {
+          return StandardCharsets.UTF_8.newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE)
+              .decode(bytes);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+    return new AsciiLine(bytes);
+  }
+
+  /**
+   * バイト列の続きを読み込む。まだ返していない行は新しい領域の先頭に置く。
+   * 返した行が参照する古い領域は書き換えない。
+   */
+  private void readMore() throws IOException {
+    int end = window.limit();
+    int pending = end - lineStart;
+    if (file != null) {
+      long size = file.size();
+      if (size <= windowStart + end) {
+        endOfInput = true;
+        return;
+      }
+      long start = windowStart + lineStart;
+      long length = Math.min(size - start, Math.max(MAP_SIZE, 2L * pending));
+      if (Integer.MAX_VALUE < length) {
+        throw new IOException("Line is too long: " + start);
+      }
+      window = file.map(FileChannel.MapMode.READ_ONLY, start, length);
+      windowStart = start;
+    } else {
+      if (end == window.capacity()) {
+        int capacity = Math.max(READ_SIZE, pending < window.capacity() / 2 ? window.capacity() : 2 * pending);
+        ByteBuffer newWindow = ByteBuffer.allocate(capacity);
+        ByteBuffer bytes = window.duplicate();
+        bytes.position(lineStart);
+        newWindow.put(bytes);
+        newWindow.flip();
+        window = newWindow;
+      } else {
+        window = window.duplicate();
+        window.position(lineStart);
+        window = window.slice();
+        window.limit(pending);
+      }
+      ByteBuffer free = window.duplicate();
+      free.limit(free.capacity()).position(pending);
+      int count = stream.read(free);
+      if (count < 0) {
+        endOfInput = true;
+      } else {
+        window.limit(pending + count);
+      }
+    }
+    scan -= lineStart;
+    lineStart = 0;
+  }
+
+  /**
+   * ASCII文字のみのバイト列を、複製せずに文字列として参照するCharSequence。
+   */
+  private static final class AsciiLine implements CharSequence {
+    /**
+     * 参照するバイト列。先頭から終端までが文字列となる。
+     */
+    private final ByteBuffer bytes;
+
+    AsciiLine(ByteBuffer someBytes) {
+      bytes = someBytes;
+    }
+
+    @Override
+    public int length() {
+      return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) bytes.get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      ByteBuffer sub = bytes.duplicate();
+      sub.limit(end).position(start);
+      return new AsciiLine(sub.slice());
+    }
+
+    @Override
+    public String toString() {
+      byte[] array = new byte[bytes.limit()];
+      bytes.duplicate().get(array);
+      return new String(array, StandardCharsets.US_ASCII);
+    }
+  }
+}
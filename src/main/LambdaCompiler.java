@@ -0,0 +1,378 @@
+package main;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ラムダ式をCombinators.csvで定義したコンビネータの式に変換するクラス。<br>
+ * 変数の抽象化にはS、K、I、B、Cとη変換を用いるTurnerの方法を用い、
+ * 変数を含まない部分をKでまとめることで、変換後の式を小さくする。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 書式:<br>
+ * <ul>
+ *   <li><p> \x.M、λx.M - 抽象。\xy.Mや\x y.Mは\x.\y.Mと同じ。</p></li>
+ *   <li><p> M N         - 適用。左結合。</p></li>
+ *   <li><p> 変数とコンビネータの名前はCLCodeと同じ規則で読み取る。束縛されていない変数はそのまま残す。</p></li>
+ * </ul>
+ *
+ * 抽象化の規則([x]Mはxを抽象化したM):<br>
+ * <ul>
+ *   <li><p> [x]x     = I</p></li>
+ *   <li><p> [x]M     = KM           (MがxをFVに含まない場合)</p></li>
+ *   <li><p> [x](Mx)  = M            (MがxをFVに含まない場合。η変換)</p></li>
+ *   <li><p> [x](MN)  = BM([x]N)     (MのみがxをFVに含まない場合)</p></li>
+ *   <li><p> [x](MN)  = C([x]M)N     (NのみがxをFVに含まない場合)</p></li>
+ *   <li><p> [x](MN)  = S([x]M)([x]N)</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class LambdaCompiler {
+  private static final int VARIABLE = 0;
+  private static final int CONSTANT = 1;
+  private static final int APPLICATION = 2;
+  private static final int LAMBDA = 3;
+
+  /**
+   * 変換するラムダ式。
+   */
+  private final String source;
+
+  /**
+   * 読み取り中の位置。
+   */
+  private int index = 0;
+
+  /**
+   * ラムダ式の大きさ(変数、コンビネータ、抽象の数)。
+   */
+  private int lambdaSize = 0;
+
+  /**
+   * 名前を変数とコンビネータに分けるTokenizer。
+   */
+  private final Tokenizer tokenizer;
+
+  private LambdaCompiler(String aSource, Tokenizer aTokenizer) {
+    source = aSource;
+    tokenizer = aTokenizer;
+  }
+
+  /**
+   * ラムダ式をコンビネータの式に変換する。
+   * @param source ラムダ式
+   * @param tokenizer 名前を変数とコンビネータに分けるTokenizer
+   * @return 変換結果
+   * @throws IllegalArgumentException ラムダ式の書式が正しくない場合、
+   *         またはSとKが定義されていない場合
+   */
+  static Result compile(String source, Tokenizer tokenizer) {
+    LambdaCompiler compiler = new LambdaCompiler(source, tokenizer);
+    Term term = compiler.parseTerm();
+    if (compiler.index < source.length()) {
+      throw compiler.error("unexpected ')'");
+    }
+    Term compiled = translate(term);
+    StringBuilder sb = new StringBuilder();
+    compiler.appendTo(sb, compiled);
+    return new Result(new String(sb), compiler.lambdaSize, compiled.size);
+  }
+
+  /**
+   * 変換結果。
+   */
+  static final class Result {
+    /**
+     * 変換後のCLCode。
+     */
+    final String code;
+
+    /**
+     * 変換前のラムダ式の大きさ(変数、コンビネータ、抽象の数)。
+     */
+    final int lambdaSize;
+
+    /**
+     * 変換後のコンビネータと変数の数。
+     */
+    final int size;
+
+    private Result(String aCode, int aLambdaSize, int aSize) {
+      code = aCode;
+      lambdaSize = aLambdaSize;
+      size = aSize;
+    }
+  }
+
+  /**
+   * 式の木のノード。生成後は変更しない。
+   */
+  private static final class Term {
+    final int kind;
+    final String name;
+    final Term left;
+    final Term right;
+
+    /**
+     * 含まれるコンビネータと変数の数。
+     */
+    final int size;
+
+    /**
+     * 束縛されていない変数。
+     */
+    private Set<String> freeVariables;
+
+    private Term(int aKind, String aName, Term aLeft, Term aRight) {
+      kind = aKind;
+      name = aName;
+      left = aLeft;
+      right = aRight;
+      size = aKind == APPLICATION ? aLeft.size + aRight.size : aKind == LAMBDA ? aRight.size : 1;
+    }
+
+    /**
+     * 束縛されていない変数を返す。一度求めた結果は保持する。
+     */
+    Set<String> getFreeVariables() {
+      if (freeVariables == null) {
+        if (kind == VARIABLE) {
+          freeVariables = Collections.singleton(name);
+        } else if (kind == CONSTANT) {
+          freeVariables = Collections.emptySet();
+        } else if (kind == LAMBDA) {
+          freeVariables = new HashSet<>(right.getFreeVariables());
+          freeVariables.remove(name);
+        } else if (left.getFreeVariables().isEmpty()) {
+          freeVariables = right.getFreeVariables();
+        } else if (right.getFreeVariables().isEmpty()) {
+          freeVariables = left.getFreeVariables();
+        } else {
+          freeVariables = new HashSet<>(left.getFreeVariables());
+          freeVariables.addAll(right.getFreeVariables());
+        }
+      }
+      return freeVariables;
+    }
+
+    boolean isVariable(String aName) {
+      return kind == VARIABLE && name.equals(aName);
+    }
+  }
+
+  private static Term application(Term left, Term right) {
+    return new Term(APPLICATION, null, left, right);
+  }
+
+  /**
+   * 定義されたコンビネータを返す。
+   * @param name コンビネータの名前
+   * @param argsCount 引数の数
+   * @param format 整形フォーマット
+   * @return コンビネータ。同じふるまいのコンビネータが定義されていない場合はnull
+   */
+  private static Term combinator(String name, int argsCount, String format) {
+    for (MacroCombinator macro : Code.macroFunctionList) {
+      if (macro.name.equals(name)) {
+        return macro.argsCount == argsCount && macro.format.equals(format)
+            ? new Term(CONSTANT, name, null, null)
+            : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 抽象を取り除く。内側の抽象から順に変数を抽象化する。
+   */
+  private static Term translate(Term term) {
+    switch (term.kind) {
+    case APPLICATION:
+      return application(translate(term.left), translate(term.right));
+    case LAMBDA:
+      return abstraction(term.name, translate(term.right));
+    default:
+      return term;
+    }
+  }
+
+  /**
+   * 抽象を含まない式から、変数を抽象化する。
+   * @param x 抽象化する変数
+   * @param term 抽象を含まない式
+   * @return [x]term
+   */
+  private static Term abstraction(String x, Term term) {
+    Term s = combinator("S", 3, "02(12)");
+    Term k = combinator("K", 2, "0");
+    if (s == null || k == null) {
+      throw new IllegalArgumentException("S and K must be defined to compile lambda terms.");
+    }
+    if (!term.getFreeVariables().contains(x)) {
+      return application(k, term);
+    }
+    if (term.isVariable(x)) {
+      Term i = combinator("I", 1, "0");
+      return i != null ? i : application(application(s, k), k);
+    }
+    Term m = term.left;
+    Term n = term.right;
+    boolean inM = m.getFreeVariables().contains(x);
+    boolean inN = n.getFreeVariables().contains(x);
+    if (!inM && n.isVariable(x)) {
+      return m;
+    }
+    if (!inM) {
+      Term b = combinator("B", 3, "0(12)");
+      return b != null
+          ? application(application(b, m), abstraction(x, n))
+          : application(application(s, application(k, m)), abstraction(x, n));
+    }
+    if (!inN) {
+      Term c = combinator("C", 3, "021");
+      return c != null
+          ? application(application(c, abstraction(x, m)), n)
+          : application(application(s, abstraction(x, m)), application(k, n));
+    }
+    return application(application(s, abstraction(x, m)), abstraction(x, n));
+  }
+
+  /**
+   * 式をCLCodeとして書き出す。<br>
+   * 隣り合う名前が1つの名前として読み取られる場合は、後ろの名前を括弧で括る。
+   */
+  private void appendTo(StringBuilder sb, Term term) {
+    if (term.kind != APPLICATION) {
+      int length = sb.length();
+      sb.append(term.name);
+      if (0 < length && sb.charAt(length - 1) != '(' && sb.charAt(length - 1) != ')') {
+        int start = length - 1;
+        while (0 < start && sb.charAt(start - 1) != '(' && sb.charAt(start - 1) != ')') {
+          start--;
+        }
+        int[] before = tokenizer.tokenize(sb.subSequence(start, length));
+        int[] after = tokenizer.tokenize(sb.subSequence(start, sb.length()));
+        if (after.length != before.length + 1) {
+          sb.setLength(length);
+          sb.append('(').append(term.name).append(')');
+        }
+      }
+      return;
+    }
+    appendTo(sb, term.left);
+    if (term.right.kind == APPLICATION) {
+      sb.append('(');
+      appendTo(sb, term.right);
+      sb.append(')');
+    } else {
+      appendTo(sb, term.right);
+    }
+  }
+
+  /**
+   * 適用の並びを読み取る。
+   */
+  private Term parseTerm() {
+    Term term = null;
+    while (true) {
+      skipSpaces();
+      if (source.length() <= index || source.charAt(index) == ')') {
+        break;
+      }
+      char top = source.charAt(index);
+      Term next;
+      if (top == '\\' || top == 'λ') {
+        // 抽象は右端まで続く
+        index++;
+        next = parseLambda();
+      } else if (top == '(') {
+        index++;
+        next = parseTerm();
+        if (source.length() <= index) {
+          throw error("')' expected");
+        }
+        index++;
+      } else if (top == '.') {
+        throw error("unexpected '.'");
+      } else {
+        for (Term atom : parseNames()) {
+          term = term == null ? atom : application(term, atom);
+        }
+        continue;
+      }
+      term = term == null ? next : application(term, next);
+    }
+    if (term == null) {
+      throw error("term expected");
+    }
+    return term;
+  }
+
+  /**
+   * "\"の後の変数の並びと"."、本体を読み取る。
+   */
+  private Term parseLambda() {
+    StringBuilder names = new StringBuilder();
+    while (index < source.length() && source.charAt(index) != '.') {
+      names.append(source.charAt(index++));
+    }
+    if (source.length() <= index) {
+      throw error("'.' expected");
+    }
+    index++;
+    Term[] variables = toTerms(new String(names).replaceAll("\\s", ""));
+    if (variables.length == 0) {
+      throw error("variable expected");
+    }
+    for (Term variable : variables) {
+      if (variable.kind != VARIABLE) {
+        throw error("'" + variable.name + "' is not a variable");
+      }
+    }
+    Term body = parseTerm();
+    for (int i = variables.length - 1; 0 <= i; i--) {
+      body = new Term(LAMBDA, variables[i].name, null, body);
+    }
+    return body;
+  }
+
+  /**
+   * 括弧、空白、"\"、"."を含まない名前の並びを読み取る。
+   */
+  private Term[] parseNames() {
+    int start = index;
+    while (index < source.length() && "()\\λ. \t".indexOf(source.charAt(index)) < 0) {
+      index++;
+    }
+    return toTerms(source.substring(start, index));
+  }
+
+  /**
+   * 名前の並びをCLCodeと同じ規則で変数とコンビネータに分ける。
+   */
+  private Term[] toTerms(String names) {
+    int[] tokens = tokenizer.tokenize(names);
+    Term[] terms = new Term[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      String name = tokenizer.getName(tokens[i]);
+      terms[i] = new Term(tokenizer.isVariable(tokens[i]) ? VARIABLE : CONSTANT, name, null, null);
+      lambdaSize++;
+    }
+    return terms;
+  }
+
+  private void skipSpaces() {
+    while (index < source.length() && Character.isWhitespace(source.charAt(index))) {
+      index++;
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at " + index);
+  }
+}
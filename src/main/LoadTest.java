@@ -0,0 +1,253 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ランダムに生成した項で、項の大きさに対する処理速度とメモリ使用量の変化を測定するクラス。<br>
+ * 大きさごとに同じ項を複数の計算方法で計算し、いずれも計算を終えた場合は計算結果が一致することを確かめる。
+ * 一致しない項があった場合は項と計算結果を表示し、終了コード1で終了する。
+ *
+ * <p>実行方法: java -cp CLSC.jar main.LoadTest [-seed n] [-sizes 16,64,256,1024] [-count n] [-mode whnf|nf]
+ * [-engines string,graph,stepwise] [-maxsteps n] [-maxsize n] [-timeout ms] [-nest rate] [-maxdepth n] [-vars n]
+ * [-warmup ms] [-emit]</p>
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * オプション:<br>
+ * <ul>
+ *   <li><p> -seed n       - 項を生成するシード。同じシードと設定では同じ項を生成する。デフォルト: 1</p></li>
+ *   <li><p> -sizes list   - 項の大きさ(括弧を除いたCLTermの数)のカンマ区切りのリスト。デフォルト: 16,64,256,1024</p></li>
+ *   <li><p> -count n      - 大きさごとに生成する項の数。デフォルト: 20</p></li>
+ *   <li><p> -mode whnf|nf - 計算を終える形。デフォルト: whnf</p></li>
+ *   <li><p> -engines list - 計算方法のカンマ区切りのリスト。string(文字列の書き換え)、graph(グラフ簡約)、
+ *                           stepwise(部分評価した定義を使わない文字列の書き換え)。
+ *                           計算結果は先頭の計算方法と比べる。-mode whnfでは部分評価した定義を使わないため、
+ *                           stepwiseとの比較で元の定義と同じ表示になることも確かめる。
+ *                           デフォルト: string,graph,stepwise</p></li>
+ *   <li><p> -maxsteps n   - 1つの項の簡約の回数の上限。デフォルト: 10000</p></li>
+ *   <li><p> -maxsize n    - 計算中の項の大きさの上限。デフォルト: 1048576</p></li>
+ *   <li><p> -timeout ms   - 1つの項の計算にかける時間の上限。デフォルト: 1000</p></li>
+ *   <li><p> -nest rate    - 項を括弧で括る確率。デフォルト: 0.3</p></li>
+ *   <li><p> -maxdepth n   - 括弧の深さの上限。デフォルト: 8</p></li>
+ *   <li><p> -vars n       - 項に含める変数の種類の数。デフォルト: 3</p></li>
+ *   <li><p> -warmup ms    - 測定の前に、最小の大きさの項を計算し続ける時間。デフォルト: 500</p></li>
+ *   <li><p> -emit         - 測定せずに、生成した項を1行に1つずつ表示する。
+ *                           Mainの入力ファイルとしてそのまま使える。</p></li>
+ * </ul>
+ *
+ * 表示: 大きさごとに、計算を終えた項と制限を超えた項の数(先頭の計算方法)、1項あたりの簡約の回数、
+ * 計算方法ごとの1秒あたりの簡約の回数、ヒープの使用量の最大値、計算結果が一致しなかった項の数。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+public final class LoadTest {
+  /**
+   * 計算方法の名前。
+   */
+  private static final List<String> ENGINES = Arrays.asList("string", "graph", "stepwise");
+
+  /**
+   * 一致しなかった計算結果を表示する文字数の上限。
+   */
+  private static final int SHOW_LENGTH = 200;
+
+  /**
+   * 1つの項の1つの計算方法での計算結果。
+   */
+  private static final class Outcome {
+    final boolean finished;
+    final String code;
+    final long reductionCount;
+    final long time;
+
+    Outcome(boolean aFinished, String aCode, long aReductionCount, long aTime) {
+      finished = aFinished;
+      code = aCode;
+      reductionCount = aReductionCount;
+      time = aTime;
+    }
+  }
+
+  /**
+   * 測定を実行する。
+   * @param args コマンドライン引数
+   */
+  public static void main(String[] args) {
+    List<String> argsList = Arrays.asList(args);
+    long seed = Options.getLong(argsList, 1, "-seed");
+    int count = (int) Options.getLong(argsList, 20, "-count");
+    String mode = Options.getString(argsList, "-mode", "whnf");
+    long maxSteps = Options.getLong(argsList, 10000, "-maxsteps");
+    long maxSize = Options.getLong(argsList, 1 << 20, "-maxsize");
+    long timeout = Options.getLong(argsList, 1000, "-timeout");
+    double nestRate = Double.parseDouble(Options.getString(argsList, "-nest", "0.3"));
+    int maxDepth = (int) Options.getLong(argsList, 8, "-maxdepth");
+    int variableCount = (int) Options.getLong(argsList, 3, "-vars");
+    long warmup = Options.getLong(argsList, 500, "-warmup");
+    int[] sizes = Arrays.stream(Options.getString(argsList, "-sizes", "16,64,256,1024").split(","))
+        .mapToInt(Integer::parseInt).toArray();
+    if (!Options.MODES.contains(mode)) {
+      System.err.println("Unknown mode: " + mode + " (available: " + String.join(",", Options.MODES) + ")");
+      return;
+    }
+    String[] engines = Options.getString(argsList, "-engines", "string,graph,stepwise").split(",");
+    for (String engine : engines) {
+      if (!ENGINES.contains(engine)) {
+        System.err.println("Unknown engine: " + engine + " (available: " + String.join(",", ENGINES) + ")");
+        return;
+      }
+    }
+
+    List<String[]> terms = new ArrayList<>();
+    for (int size : sizes) {
+      TermGenerator generator = new TermGenerator(seed * 1_000_003L + size, nestRate, maxDepth, variableCount);
+      String[] codes = new String[count];
+      for (int i = 0; i < count; i++) {
+        codes[i] = generator.generate(size);
+      }
+      terms.add(codes);
+    }
+    if (argsList.contains("-emit")) {
+      for (String[] codes : terms) {
+        for (String code : codes) {
+          System.out.println(code);
+        }
+      }
+      return;
+    }
+
+    Options[] options = new Options[engines.length];
+    for (int i = 0; i < engines.length; i++) {
+      List<String> list = new ArrayList<>(Arrays.asList("-s", "-mode", mode, "-maxsteps", String.valueOf(maxSteps),
+          "-maxsize", String.valueOf(maxSize), "-timeout", String.valueOf(timeout)));
+      if ("stepwise".equals(engines[i])) {
+        list.add("-stepwise");
+      }
+      options[i] = Options.parse(list.toArray(new String[list.size()]));
+    }
+
+    System.out.println(String.format("Seed: %d (count: %d, mode: %s, maxsteps: %d, nest: %.2f, maxdepth: %d, vars: %d)",
+        seed, count, mode, maxSteps, nestRate, maxDepth, variableCount));
+    long deadline = System.nanoTime() + warmup * 1_000_000L;
+    while (0 < terms.size() && 0 < count && System.nanoTime() < deadline) {
+      for (String code : terms.get(0)) {
+        for (int i = 0; i < engines.length; i++) {
+          run(engines[i], code, options[i]);
+        }
+      }
+    }
+
+    StringBuilder header = new StringBuilder(String.format("%-8s %6s %6s %6s %10s", "Size", "Terms", "Normal",
+        "Budget", "Red/term"));
+    for (String engine : engines) {
+      header.append(String.format(" %16s", engine + " red/s"));
+    }
+    System.out.println(header.append(String.format(" %9s %8s", "Peak MB", "Mismatch")));
+    List<String> mismatches = new ArrayList<>();
+    for (int s = 0; s < sizes.length; s++) {
+      long[] reductions = new long[engines.length];
+      long[] times = new long[engines.length];
+      int finished = 0;
+      int mismatchCount = 0;
+      resetPeakUsage();
+      for (int t = 0; t < count; t++) {
+        String code = terms.get(s)[t];
+        Outcome reference = null;
+        for (int i = 0; i < engines.length; i++) {
+          Outcome outcome = run(engines[i], code, options[i]);
+          reductions[i] += outcome.reductionCount;
+          times[i] += outcome.time;
+          if (i == 0) {
+            reference = outcome;
+            finished += outcome.finished ? 1 : 0;
+          } else if (reference.finished && outcome.finished && !reference.code.equals(outcome.code)) {
+            mismatchCount++;
+            mismatches.add(String.format("<< MISMATCH >> size: %d, term: %d, %s != %s%n  Code   : %s%n  %-7s: %s%n  %-7s: %s",
+                sizes[s], t + 1, engines[0], engines[i], shorten(code), engines[0], shorten(reference.code),
+                engines[i], shorten(outcome.code)));
+          }
+        }
+      }
+      StringBuilder line = new StringBuilder(String.format("%-8d %6d %6d %6d %10.1f", sizes[s], count, finished,
+          count - finished, 0 < count ? (double) reductions[0] / count : 0));
+      for (int i = 0; i < engines.length; i++) {
+        line.append(String.format(" %16.1f", 0 < times[i] ? reductions[i] / (times[i] / 1e9) : 0));
+      }
+      System.out.println(line.append(String.format(" %9.1f %8d", getPeakUsage() / (double) (1 << 20),
+          mismatchCount)));
+    }
+    for (String mismatch : mismatches) {
+      System.out.println(mismatch);
+    }
+    if (!mismatches.isEmpty()) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * 1つの項を1つの計算方法で計算する。
+   * @param engine 計算方法
+   * @param clcode 項
+   * @param options 実行オプション
+   * @return 計算結果
+   */
+  private static Outcome run(String engine, String clcode, Options options) {
+    Context context = new Context(options, ConsoleOut.NULL_OUT);
+    long start = System.nanoTime();
+    String result = null;
+    try {
+      Code code;
+      if ("graph".equals(engine)) {
+        GraphCode graphCode = new GraphCode(clcode, context);
+        graphCode.calculate();
+        code = new Code(graphCode.getCode(), context);
+      } else {
+        code = new Code(clcode, context);
+        code.calculate();
+      }
+      result = code.getCode();
+    } catch (BudgetExceededException e) {
+      // 制限を超えた項は計算結果を比べない
+    }
+    return new Outcome(result != null, result, context.reductionCount, System.nanoTime() - start);
+  }
+
+  /**
+   * ヒープの使用量の最大値を0に戻す。戻す前に不要なオブジェクトを回収する。
+   */
+  private static void resetPeakUsage() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * 前回0に戻してからのヒープの使用量の最大値を、領域ごとに合計して返す。
+   */
+  private static long getPeakUsage() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * 表示する文字数の上限を超えた文字列を切り詰める。
+   */
+  private static String shorten(String s) {
+    return s.length() <= SHOW_LENGTH ? s : s.substring(0, SHOW_LENGTH) + "...(" + s.length() + " chars)";
+  }
+}
@@ -1,6 +1,8 @@
 package main;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
 
 /**
  * コンビネータのふるまいを定義するクラス。
@@ -23,75 +25,290 @@ final class MacroCombinator {
   final String format;
 
   /**
-   * CodeSbから取り出したCLTermのリスト。
+   * 整形フォーマットを分解したテンプレート。最初に使うまでは生成しない。
    */
-  private LinkedList<String> list = new LinkedList<>();
+  private volatile Template template;
+
+  /**
+   * 整形後のコードの一番外のCLTermの数。
+   */
+  private int termCount;
+
+  /**
+   * 整形フォーマットの括弧の数が等しいかどうか。
+   */
+  private boolean balanced;
+
+  /**
+   * NativeCombinatorの名前または完全修飾クラス名。指定しない場合は空文字列。
+   */
+  final String nativeName;
+
+  /**
+   * Javaで実装した計算。整形フォーマットのみで計算する場合はnull。
+   */
+  private NativeCombinator nativeCombinator;
+
+  /**
+   * nativeCombinatorを探し終えたかどうか。
+   */
+  private volatile boolean nativeResolved;
+
+  /**
+   * 読み込み時に部分評価した定義。部分評価しなかった場合はnull。
+   */
+  private MacroCombinator folded;
+
+  /**
+   * 部分評価した定義の場合、1回の簡約にまとめた簡約の回数。それ以外は0。
+   */
+  private int collapsedCount;
+
+  /**
+   * ServiceLoaderで見つけたNativeCombinatorの実装。
+   */
+  private static List<NativeCombinator> nativeCombinators;
 
   MacroCombinator(String[] arrays) {
-    this(arrays[0], arrays[1], arrays[2]);
+    this(arrays[0], arrays[1], arrays[2], 3 < arrays.length ? arrays[3] : "");
   }
 
-  MacroCombinator(MacroCombinator macro) {
-    this(macro.name, String.valueOf(macro.argsCount), macro.format);
+  MacroCombinator(String aName, String anArgsCount, String aFormat) {
+    this(aName, anArgsCount, aFormat, "");
   }
 
-  MacroCombinator(String aName, String anArgsCount, String aFormat) {
+  /**
+   * Javaで実装した計算を指定するコンストラクタ。
+   * @param aName 関数名
+   * @param anArgsCount 関数が必要とする引数の数
+   * @param aFormat 整形フォーマット
+   * @param aNativeName NativeCombinatorの名前または完全修飾クラス名。指定しない場合は空文字列
+   */
+  MacroCombinator(String aName, String anArgsCount, String aFormat, String aNativeName) {
     name = aName;
     argsCount = Integer.parseInt(anArgsCount);
     format = aFormat;
+    nativeName = aNativeName;
+  }
+
+  /**
+   * 定義のスナップショットから読み込むコンストラクタ。compileを呼ぶ必要はない。
+   * @param aName 関数名
+   * @param anArgsCount 関数が必要とする引数の数
+   * @param aFormat 整形フォーマット
+   * @param aNativeName NativeCombinatorの名前または完全修飾クラス名。指定しない場合は空文字列
+   * @param aTermCount 整形後のコードの一番外のCLTermの数
+   * @param aBalanced 整形フォーマットの括弧の数が等しいかどうか
+   */
+  MacroCombinator(String aName, int anArgsCount, String aFormat, String aNativeName, int aTermCount,
+      boolean aBalanced) {
+    name = aName;
+    argsCount = anArgsCount;
+    format = aFormat;
+    nativeName = aNativeName;
+    termCount = aTermCount;
+    balanced = aBalanced;
   }
 
   /**
-   * 取り出した文字が数値か否かを調べ、
-   * 数値だった場合、数値を数値と対応したリストの文字列に置換する
+   * Javaで実装した計算を返す。最初に呼ばれたときに探す。
+   * @return NativeCombinator。整形フォーマットのみで計算する場合はnull
    */
-  private final String replaceNumber() {
-    StringBuilder sb = new StringBuilder();
-    for (String str : format.split("")) {
-      if (str.matches("^[0-9]")) {
-        int index = Integer.parseInt(str);
-        str = list.get(index);
+  final NativeCombinator getNativeCombinator() {
+    if (!nativeResolved) {
+      resolveNativeCombinator();
+    }
+    return nativeCombinator;
+  }
+
+  private synchronized void resolveNativeCombinator() {
+    if (!nativeResolved) {
+      nativeCombinator = nativeName.isEmpty() ? null : findNativeCombinator(nativeName);
+      nativeResolved = true;
+    }
+  }
+
+  /**
+   * 名前に対応するNativeCombinatorを返す。<br>
+   * ServiceLoaderで登録された実装から探し、見つからない場合は完全修飾クラス名として読み込む。
+   * @param nativeName NativeCombinatorの名前または完全修飾クラス名
+   * @return NativeCombinator。見つからなかった場合はnull
+   */
+  private static synchronized NativeCombinator findNativeCombinator(String nativeName) {
+    if (nativeCombinators == null) {
+      nativeCombinators = new ArrayList<>();
+      for (NativeCombinator combinator : ServiceLoader.load(NativeCombinator.class)) {
+        nativeCombinators.add(combinator);
+      }
+    }
+    for (NativeCombinator combinator : nativeCombinators) {
+      if (combinator.getName().equals(nativeName)) {
+        return combinator;
       }
-      sb.append(str);
     }
-    return new String(sb);
+    try {
+      return Class.forName(nativeName).asSubclass(NativeCombinator.class).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      System.err.println("Native combinator is not found: " + nativeName);
+      return null;
+    }
+  }
+
+  /**
+   * 読み込み時に部分評価した定義を返す。
+   * @return 部分評価した定義。部分評価しなかった場合はnull
+   */
+  final MacroCombinator getFolded() {
+    return folded;
+  }
+
+  /**
+   * 読み込み時に部分評価した定義を設定する。
+   * @param aFolded 部分評価した定義。関数名は同じものとする
+   * @param aCollapsedCount 1回の簡約にまとめた簡約の回数
+   */
+  final void setFolded(MacroCombinator aFolded, int aCollapsedCount) {
+    folded = aFolded;
+    aFolded.collapsedCount = aCollapsedCount;
+  }
+
+  /**
+   * 部分評価した定義の場合、1回の簡約にまとめた簡約の回数を返す。それ以外は0を返す。
+   */
+  final int getCollapsedCount() {
+    return collapsedCount;
   }
 
   /**
-   * コンビネータを実行する。
-   * @param aCode
-   * @return
+   * 整形フォーマット中の文字が引数の番号かどうかを調べる。<br>
+   * 引数の数を超える番号はそのままの文字として扱う。
+   * @param ch 調べる文字
+   * @return 引数の番号の場合true
    */
-  private final String combinatorDo(Code aCode) {
-    String clterm = aCode.pollCLTerm();
-    if (0 < clterm.length()) {
-      list.addLast(clterm);
-      ConsoleOut.printList(list);
+  final boolean isSlot(char ch) {
+    return '0' <= ch && ch <= '9' && ch - '0' < argsCount;
+  }
 
-      if (argsCount <= list.size()) {
-        // コンビネータ実行のための引数が足りた場合
-        String formatedCode = replaceNumber();
-        return formatedCode;
+  /**
+   * 整形フォーマットを分解し、一番外のCLTermの数と括弧の数が等しいかどうかを求める。<br>
+   * トークンの値はすべてのマクロ関数の名前が確定してから決まるため、
+   * マクロ関数のリストを読み込んだ後に呼び出す。
+   * @param tokenizer トークン列への変換に用いるTokenizer
+   */
+  final void compile(Tokenizer tokenizer) {
+    Template compiled = new Template(this, tokenizer);
+    int[][] segmentTokens = compiled.segmentTokens;
+
+    // 引数を1つのCLTermとみなして、一番外のCLTermの数を数えておく
+    int depth = 0;
+    termCount = 0;
+    balanced = true;
+    for (int i = 0; i < segmentTokens.length; i++) {
+      for (int token : segmentTokens[i]) {
+        if (depth == 0) {
+          termCount++;
+        }
+        depth = token == Tokenizer.OPEN ? depth + 1 : token == Tokenizer.CLOSE ? depth - 1 : depth;
+        balanced &= 0 <= depth;
+      }
+      if (i < compiled.slots.length && depth == 0) {
+        termCount++;
       }
-      return combinatorDo(aCode);
     }
-    // 元のコードの文字列が空になって、これ以上項を取り出すことが不可能な場合
-    // 取り出していたリストに格納したコンビネータを復元し、呼び出し元に返却する。
-    String combinator = String.join("", list);
-    aCode.loopSwitch = false;
-    return combinator;
+    balanced &= depth == 0;
+    template = compiled;
+  }
+
+  /**
+   * テンプレートを返す。最初に呼ばれたときに整形フォーマットを分解する。<br>
+   * 複数のスレッドから同時に呼ばれた場合は重複して生成することがあるが、結果は同じになる。
+   */
+  private Template getTemplate() {
+    Template t = template;
+    if (t == null) {
+      t = new Template(this, Code.tokenizer);
+      template = t;
+    }
+    return t;
+  }
+
+  /**
+   * 整形フォーマット中に現れる引数の数を返す。
+   */
+  final int getSlotCount() {
+    return getTemplate().slots.length;
+  }
+
+  /**
+   * index番目の引数の番号を返す。
+   */
+  final int getSlot(int index) {
+    return getTemplate().slots[index];
   }
 
   /**
-   * コンビネータを実行し、可能だった場合は整形後の文字列、あるいはフォーマットをそのまま返す。<br>
-   * @return 実行できる場合 = true, 出来ない場合 = false
+   * index番目の引数の直前に置くトークン列を返す。
+   * indexが引数の数と等しい場合は末尾に置くトークン列を返す。
    */
-  final String calculate(Code aCode) {
-    return 0 < argsCount ? combinatorDo(aCode) : format;
+  final int[] getSegment(int index) {
+    return getTemplate().segmentTokens[index];
+  }
+
+  /**
+   * 整形後のコードの一番外のCLTermの数を返す。
+   */
+  final int getTermCount() {
+    return termCount;
+  }
+
+  /**
+   * 整形フォーマットの括弧の数が等しい場合trueを返す。<br>
+   * 等しくない場合、整形後のコードのCLTermの区切りは前後のコードによって変わる。
+   */
+  final boolean isBalanced() {
+    return balanced;
   }
 
   @Override
   public String toString() {
-    return String.format("functionName: %s, argsCount: %d, format: %s", name, argsCount, format);
+    return String.format("functionName: %s, argsCount: %d, format: %s%s", name, argsCount, format,
+        nativeName.isEmpty() ? "" : ", native: " + nativeName);
+  }
+
+  /**
+   * 整形フォーマットを引数以外のトークン列と引数の番号に分解したもの。生成後は変更しない。
+   */
+  private static final class Template {
+    /**
+     * 整形フォーマット中に現れる引数の番号。
+     */
+    final int[] slots;
+
+    /**
+     * 整形フォーマットのうち、引数以外の文字列をトークン列に変換したもの。
+     * segmentTokens[i]はslots[i]番目の引数の直前に置かれ、最後の要素は末尾に置かれる。
+     */
+    final int[][] segmentTokens;
+
+    Template(MacroCombinator macro, Tokenizer tokenizer) {
+      List<int[]> segmentList = new ArrayList<>();
+      List<Integer> slotList = new ArrayList<>();
+      StringBuilder sb = new StringBuilder();
+      for (char ch : macro.format.toCharArray()) {
+        if (macro.isSlot(ch)) {
+          segmentList.add(tokenizer.tokenize(sb));
+          slotList.add(ch - '0');
+          sb.setLength(0);
+        } else {
+          sb.append(ch);
+        }
+      }
+      segmentList.add(tokenizer.tokenize(sb));
+      segmentTokens = segmentList.toArray(new int[segmentList.size()][]);
+      slots = new int[slotList.size()];
+      for (int i = 0; i < slots.length; i++) {
+        slots[i] = slotList.get(i);
+      }
+    }
   }
 }
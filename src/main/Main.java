@@ -4,18 +4,32 @@ import static util.UtilKeyInput.closeStream;
 import static util.UtilKeyInput.inputKey;
 import static util.UtilKeyInput.inputSwitchOption;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * mainメソッド、および実行時のオプション設定を制御するクラス。<br>
  *
  * <p>コマンドライン引数の最初にファイル名を指定することで、
- * ファイルから1行ずつコンビネータ論理コードを取得し、実行する。<br>
+ * ファイルから1行ずつコンビネータ論理コードを取得し、実行する。
+ * ファイル名に"-"を指定した場合は標準入力から読み込む。<br>
  * ファイル名を指定しなかった場合や、存在しないファイルを指定した場合、
  * オプションのみを指定した場合はコンソールからコンビネータ論理コードを入力し、実行する。<br>
  * この時、オプション設定を省略した場合はデフォルトの設定が適用される。</p>
@@ -35,6 +49,64 @@ import java.nio.file.Path;
  *                            デフォルト: 非表示</p></li>
  *   <li><p> -n[oindent]    - 括弧の中の計算に処理が移った際のコンソール表示でインデント整形を行わない。<br>
  *                            デフォルト: 整形する</p></li>
+ *   <li><p> -g[raph]       - 引数を共有するグラフ簡約で計算する。計算結果は通常の計算と同じになる。
+ *                            -mode nfの引数の計算もグラフ簡約で行い、共有された引数は一度だけ正規形にする。<br>
+ *                            デフォルト: 文字列の書き換えで計算する</p></li>
+ *   <li><p> -offheap       - グラフ簡約のノードをヒープ外のメモリに保持する。<br>
+ *                            デフォルト: ヒープに保持する</p></li>
+ *   <li><p> -j[obs] number - ファイルの各行をnumber個のスレッドで同時に計算する。
+ *                            出力は入力の順に行い、最後に処理速度を表示する。
+ *                            括弧の数が不等な行は計算しない。<br>
+ *                            デフォルト: 1</p></li>
+ *   <li><p> -maxsteps number - 1つのCLCodeで実行する簡約の回数の上限。
+ *                            超えた場合は途中の項を表示して次のCLCodeに進む。<br>
+ *                            デフォルト: 0(制限しない)</p></li>
+ *   <li><p> -maxsize number  - 計算中の項の大きさの上限。文字列の書き換えではトークンの数、
+ *                            グラフ簡約ではノードの数で数える。<br>
+ *                            デフォルト: 0(制限しない)</p></li>
+ *   <li><p> -timeout number  - 1つのCLCodeの計算にかける時間の上限。numberはミリ秒の整数。<br>
+ *                            デフォルト: 0(制限しない)</p></li>
+ *   <li><p> -cache number  - 変数を含まない括弧の中の計算結果をnumber個まで保持し、
+ *                            同じコードが再び現れた場合は計算せずに再利用する。
+ *                            再利用した括弧の中の計算過程は表示しない。最後に利用状況を表示する。<br>
+ *                            デフォルト: 0(保持しない)</p></li>
+ *   <li><p> -trace file    - 計算過程を各ステップの差分としてバイナリ形式でfileに記録する。
+ *                            記録した計算過程はmain.TraceReplayで表示する。<br>
+ *                            デフォルト: 記録しない</p></li>
+ *   <li><p> -async         - 計算過程の出力を別のスレッドで書き出す。
+ *                            書き出しが追いつかない場合は計算を待たせる。<br>
+ *                            デフォルト: 計算と同じスレッドで書き出す</p></li>
+ *   <li><p> -mode whnf|nf  - 計算を終える形。whnfは先頭のコンビネータが引数不足に直面した時点で終える。
+ *                            nfはその後に引数を左から順に正規形にする。
+ *                            指定した場合は計算結果の後にステップ数と簡約の回数を表示する。<br>
+ *                            デフォルト: whnf</p></li>
+ *   <li><p> -lambda        - 入力をラムダ式(\x.M、λx.M)として読み、S、K、I、B、Cとη変換で
+ *                            コンビネータの式に変換してから計算する。変換後の大きさも表示する。<br>
+ *                            デフォルト: CLCodeとして読む</p></li>
+ *   <li><p> -stats file    - CLCodeごとの計算時間、ステップ数、マクロ関数ごとの簡約の回数、
+ *                            項の大きさと括弧の中にもぐった数の最大値、括弧の中にもぐった回数、
+ *                            複製、確保したトークンの数をfileに書き出す。
+ *                            fileが".csv"で終わる場合はCSV、それ以外はJSONで書き出す。<br>
+ *                            デフォルト: 書き出さない</p></li>
+ *   <li><p> -profile file  - 簡約ごとに、括弧の中にもぐった経路と実行したマクロ関数を記録し、
+ *                            "line:1;();arg:x;S 1234"の形式(フレームグラフ用の折りたたみスタック)でfileに書き出す。
+ *                            経路の先頭は入力の何番目のCLCodeかを表す。<br>
+ *                            デフォルト: 書き出さない</p></li>
+ *   <li><p> -cycle         - 計算が以前と同じ状態に戻ったことを検出した場合に計算を打ち切り、
+ *                            循環に入ったステップと周期を表示する。グラフ簡約では検出しない。<br>
+ *                            デフォルト: 検出しない</p></li>
+ *   <li><p> -stepwise      - -mode nfでも読み込み時に部分評価した定義を使わず、Combinators.csvの定義のまま1ステップずつ計算する。
+ *                            部分評価した定義を使った場合は、-modeの表示にまとめた簡約の回数(collapsed)を加える。<br>
+ *                            デフォルト: -mode nfの場合のみ部分評価した定義を使う</p></li>
+ *   <li><p> -fork [number] - -mode nfの場合に、先頭が計算できなくなったコードの引数を並列に計算する。
+ *                            括弧を含めたトークンの数がnumber以上の引数が2つ以上ある場合のみ他のスレッドに渡す。
+ *                            -sを指定し、計算過程の記録、統計情報、制限、循環の検出を指定しない場合のみ有効。<br>
+ *                            numberを省略した場合は4096とする。<br>
+ *                            デフォルト: 並列に計算しない</p></li>
+ *   <li><p> -server [port] - 常駐して、localhostのportで1行ずつ計算の要求を受け付ける。
+ *                            要求ごとにオプションを指定でき、出力と統計情報を返す。プロトコルはServerを参照。
+ *                            portを省略した場合は空いているポートを使い、起動時に表示する。<br>
+ *                            デフォルト: 常駐しない</p></li>
  * </ul>
  *
  * コンソール表示:<br>
@@ -51,73 +123,384 @@ import java.nio.file.Path;
  */
 public final class Main {
   private static final String CODE = "Code   : ";
+  private static final String LAMBDA = "Lambda : ";
   private static final String RESULT = "Result: ";
   private static final String LINE = "------------------------------";
+  private static final String BUDGET_EXCEEDED = "<< BUDGET EXCEEDED >> ";
+  private static final String CYCLE_DETECTED = "<< CYCLE DETECTED >> ";
+  private static final String PARTIAL = "Partial: ";
+
+  /**
+   * 並列計算時に、出力を待たずに先行して計算するCLCodeの数(スレッドあたり)。
+   */
+  private static final int PENDING_PER_JOB = 4;
+
+  /**
+   * 標準出力のバッファの文字数。
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * 計算過程を記録するファイルのバッファのバイト数。
+   */
+  private static final int TRACE_BUFFER_SIZE = 1 << 16;
 
   /**
    * プログラム実行。
    * @param args コマンドライン引数
    */
   public static void main(String[] args) {
-    ConsoleOut.setCommandLineOptions(args);
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+    PrintWriter out = createOut(options);
+    NormalFormCache cache = 0 < options.cacheSize ? new NormalFormCache(options.cacheSize) : null;
+    if (options.serverSwitch) {
+      Server.run(options, cache, out);
+      return;
+    }
+    OutputStream traceOut = openTrace(options);
+    Statistics statistics = new Statistics();
+    Profile profile = new Profile();
 
     if (0 < args.length) {
       File file = new File(args[0]);
-      if (file.exists()) {
+      boolean stdin = "-".equals(args[0]);
+      if (file.exists() || stdin) {
         // コマンドライン引数にファイル名を指定した場合
-        // 引数のテキストファイルから1行ずつCLコードを読み込み実行する
-        Path path = file.toPath();
-        try (BufferedReader br = Files.newBufferedReader(path, Charset.forName("UTF-8"))) {
-          br.lines()
-              .filter(l -> !l.startsWith("#") && l.length() != 0)
-              .forEach(Main::executeCode);
-        } catch (IOException e) {
+        // 引数のテキストファイル("-"の場合は標準入力)から1行ずつCLコードを読み込み実行する
+        try (InputLines lines = stdin ? InputLines.open(System.in) : InputLines.open(file)) {
+          if (1 < options.jobs) {
+            executeParallel(lines, options, out, cache, traceOut, statistics, profile);
+          } else {
+            while (lines.hasNext()) {
+              Context context = new Context(options, out, cache, createTrace(traceOut));
+              // 標準入力から読み込む場合は、計算するかどうかをキーボードから入力しない
+              executeCode(lines.next(), context, !stdin);
+              statistics.add(context.stats);
+              profile.add(context.profile);
+            }
+          }
+        } catch (IOException | UncheckedIOException e) {
           e.printStackTrace();
         }
+        printCacheStatistics(cache, out);
+        writeStatistics(statistics, options);
+        writeProfile(profile, options);
+        closeTrace(traceOut);
+        out.flush();
         return;
       }
     }
     // ファイル指定がなかった場合
     String clCode = inputKey("Enter the Combinator Logic Code.");
-    executeCode(clCode);
+    Context context = new Context(options, out, cache, createTrace(traceOut));
+    executeCode(clCode, context, true);
+    statistics.add(context.stats);
+    profile.add(context.profile);
+    printCacheStatistics(cache, out);
+    writeStatistics(statistics, options);
+    writeProfile(profile, options);
+    closeTrace(traceOut);
+    out.flush();
     closeStream();
   }
 
+  /**
+   * 計算過程を記録するファイルを開き、ヘッダを書き出す。
+   * @param options 実行オプション
+   * @return 記録先。記録しない場合や開けなかった場合はnull
+   */
+  private static final OutputStream openTrace(Options options) {
+    if (options.traceFile == null) {
+      return null;
+    }
+    try {
+      OutputStream traceOut = new BufferedOutputStream(new FileOutputStream(options.traceFile), TRACE_BUFFER_SIZE);
+      TraceWriter.writeHeader(traceOut);
+      return traceOut;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * 1つのCLCodeの計算過程の記録先を生成する。
+   * @param traceOut 記録先のファイル。記録しない場合はnull
+   * @return 記録先。記録しない場合はnull
+   */
+  private static final TraceWriter createTrace(OutputStream traceOut) {
+    return traceOut == null ? null : new TraceWriter(traceOut);
+  }
+
+  /**
+   * 計算過程を記録するファイルを閉じる。
+   * @param traceOut 記録先のファイル。記録しない場合はnull
+   */
+  private static final void closeTrace(OutputStream traceOut) {
+    if (traceOut != null) {
+      try {
+        traceOut.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * 括弧の中の計算結果のキャッシュの利用状況を出力する。
+   * @param cache キャッシュ。使わない場合はnull
+   * @param out 出力先
+   */
+  private static final void printCacheStatistics(NormalFormCache cache, PrintWriter out) {
+    if (cache != null) {
+      out.println("Cache     : " + cache.getStatistics());
+    }
+  }
+
+  /**
+   * 計算の統計情報をファイルに書き出す。
+   * @param statistics 計算の統計情報
+   * @param options 実行オプション
+   */
+  private static final void writeStatistics(Statistics statistics, Options options) {
+    if (options.statsFile != null) {
+      statistics.write(options.statsFile);
+    }
+  }
+
+  /**
+   * 簡約ごとの経路の記録をファイルに書き出す。
+   * @param profile 簡約ごとの経路の記録
+   * @param options 実行オプション
+   */
+  private static final void writeProfile(Profile profile, Options options) {
+    if (options.profileFile != null) {
+      profile.write(options.profileFile);
+    }
+  }
+
+  /**
+   * 標準出力への出力先を生成する。<br>
+   * 計算過程は大量に出力されるため、1行ごとに書き出さずにバッファに溜める。
+   * @param options 実行オプション
+   * @return 出力先
+   */
+  private static final PrintWriter createOut(Options options) {
+    Writer writer = new OutputStreamWriter(System.out);
+    if (options.asyncSwitch) {
+      writer = new AsyncWriter(writer);
+    } else {
+      writer = new BufferedWriter(writer, OUTPUT_BUFFER_SIZE);
+    }
+    return new PrintWriter(writer);
+  }
+
+  /**
+   * 複数のCLCodeをスレッドプールで同時に計算し、入力の順に出力する。<br>
+   * 出力を待つCLCodeが一定数を超えた場合は、先頭のCLCodeの計算が終わるまで次の読み込みを待つ。
+   * 最後に計算したCLCodeの数と簡約の回数から処理速度を出力する。
+   * @param lines CLCode
+   * @param options 実行オプション
+   * @param out 出力先
+   * @param cache 括弧の中の計算結果のキャッシュ。使わない場合はnull
+   * @param traceOut 計算過程を記録するファイル。記録しない場合はnull
+   * @param statistics 計算の統計情報の追加先
+   * @param profile 簡約ごとの経路の記録の追加先
+   */
+  private static final void executeParallel(Iterator<CharSequence> lines, Options options, PrintWriter out,
+      NormalFormCache cache, OutputStream traceOut, Statistics statistics, Profile profile) {
+    ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
+    Deque<Future<BatchResult>> pending = new ArrayDeque<>();
+    long[] totals = new long[2];
+    long startTime = System.nanoTime();
+    try {
+      while (lines.hasNext()) {
+        CharSequence clcode = lines.next();
+        pending.add(executor.submit(() -> {
+          StringWriter buffer = new StringWriter();
+          // 計算過程の記録も入力の順に書き出すため、CLCodeごとに溜める
+          ByteArrayOutputStream traceBuffer = traceOut == null ? null : new ByteArrayOutputStream();
+          Context context = new Context(options, new PrintWriter(buffer), cache, createTrace(traceBuffer));
+          executeCode(clcode, context, false);
+          return new BatchResult(buffer.toString(), context.reductionCount, traceBuffer, context.stats,
+              context.profile);
+        }));
+        if (options.jobs * PENDING_PER_JOB <= pending.size()) {
+          writeResult(pending.poll(), out, traceOut, totals, statistics, profile);
+        }
+      }
+      while (!pending.isEmpty()) {
+        writeResult(pending.poll(), out, traceOut, totals, statistics, profile);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    out.println(String.format("Terms     : %d (%.1f terms/sec)", totals[0], totals[0] / seconds));
+    out.println(String.format("Reductions: %d (%.1f reductions/sec)", totals[1], totals[1] / seconds));
+    out.println(String.format("Time      : %.3f sec (%d jobs)", seconds, options.jobs));
+  }
+
+  /**
+   * 計算が終わるのを待って結果を出力する。
+   * @param future 計算結果
+   * @param out 出力先
+   * @param traceOut 計算過程を記録するファイル。記録しない場合はnull
+   * @param totals 計算したCLCodeの数と簡約の回数の合計
+   * @param statistics 計算の統計情報の追加先
+   * @param profile 簡約ごとの経路の記録の追加先
+   */
+  private static final void writeResult(Future<BatchResult> future, PrintWriter out, OutputStream traceOut,
+      long[] totals, Statistics statistics, Profile profile) {
+    try {
+      BatchResult result = future.get();
+      out.print(result.output);
+      if (result.trace != null) {
+        result.trace.writeTo(traceOut);
+      }
+      totals[0]++;
+      totals[1] += result.reductionCount;
+      statistics.add(result.stats);
+      profile.add(result.profile);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      out.println("<< ERROR >> " + e.getCause());
+      out.println(LINE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    out.flush();
+  }
+
+  /**
+   * 並列計算での1つのCLCodeの計算結果。
+   */
+  private static final class BatchResult {
+    final String output;
+    final long reductionCount;
+    final ByteArrayOutputStream trace;
+    final Statistics.Line stats;
+    final Profile.Line profile;
+
+    BatchResult(String anOutput, long aReductionCount, ByteArrayOutputStream aTrace, Statistics.Line aStats,
+        Profile.Line aProfile) {
+      output = anOutput;
+      reductionCount = aReductionCount;
+      trace = aTrace;
+      stats = aStats;
+      profile = aProfile;
+    }
+  }
+
   /**
    * コンビネータ論理計算を実行する。
    * @param clcode コンビネータ論理コード
+   * @param context 計算の設定と状態
+   * @param interactive 括弧の数が不等な場合に、計算するかどうかをキーボードから入力するか
    */
-  private final static void executeCode(String clcode) {
-    Code code = new Code(clcode);
+  final static void executeCode(CharSequence clcode, Context context, boolean interactive) {
+    if (context.options.lambdaSwitch) {
+      clcode = compileLambda(clcode.toString(), context);
+      if (clcode == null) {
+        context.console.flush();
+        return;
+      }
+    }
+    Code code = new Code(clcode, context);
+    if (context.stats != null) {
+      context.stats.setCode(clcode.toString());
+    }
 
     if (code.hasSameBracketCount()) {
       // 括弧の数が等しく、正常に動作するコードの場合
-      doCalculation(code);
+      doCalculation(code, context);
     } else {
       // 括弧の数が不等で、正常に動作しないと思われるコードの場合
-      System.out.println("Count of bracket is not correct.");
+      context.console.println("Count of bracket is not correct.");
+      context.console.flush();
 
-      boolean executeSwitch = inputSwitchOption("Forced to run the program? [y/n]");
+      boolean executeSwitch = interactive && inputSwitchOption("Forced to run the program? [y/n]");
       if (executeSwitch) {
-        doCalculation(code);
+        doCalculation(code, context);
       } else {
-        System.out.println("Finish to calculate.");
+        context.console.println("Finish to calculate.");
       }
     }
+    context.console.flush();
+  }
+
+  /**
+   * ラムダ式をコンビネータの式に変換し、変換前の式と変換後の大きさを出力する。
+   * @param lambda ラムダ式
+   * @param context 計算の設定と状態
+   * @return 変換後のCLCode。変換できなかった場合はnull
+   */
+  private static final String compileLambda(String lambda, Context context) {
+    ConsoleOut console = context.console;
+    console.println(LAMBDA + lambda);
+    try {
+      LambdaCompiler.Result result = LambdaCompiler.compile(lambda, context.tokenizer);
+      console.println(String.format("Size   : %d terms (lambda: %d terms)", result.size, result.lambdaSize));
+      return result.code;
+    } catch (IllegalArgumentException e) {
+      console.println("<< SYNTAX ERROR >> " + e.getMessage());
+      console.println("");
+      console.println(LINE);
+      return null;
+    }
   }
 
   /**
    * 計算を実行する。<br>
    * 読み込んだコードと計算結果も出力する。
-   * @param aCode コンビネータ論理コード
-   */
-  private static final void doCalculation(Code code) {
-    System.out.println(CODE + code.getCode());
-    code.calculate();
-    System.out.println(RESULT + code.getCode());
-    ConsoleOut.printWarning(code);
-    System.out.println();
-    System.out.println(LINE);
-    ConsoleOut.stepCount = 0;
+   * @param code コンビネータ論理コード
+   * @param context 計算の設定と状態
+   */
+  private static final void doCalculation(Code code, Context context) {
+    ConsoleOut console = context.console;
+    console.println(CODE + code.getCode());
+    context.startBudget();
+    if (context.stats != null) {
+      context.stats.start();
+    }
+    try {
+      if (context.options.graphSwitch) {
+        GraphCode graphCode = new GraphCode(code.getCode(), context);
+        graphCode.calculate();
+        // 文字列への変換は計算結果の出力のみに行う
+        code = new Code(graphCode.getCode(), context);
+      } else {
+        code.calculate();
+      }
+      if (context.stats != null) {
+        context.stats.finish(context, "normal");
+      }
+    } catch (BudgetExceededException e) {
+      // 制限を超えた場合や循環を検出した場合は、途中の項を表示して次のCLCodeに進む
+      if (context.stats != null) {
+        context.stats.finish(context, e.isCycle() ? "cycle" : "budget");
+      }
+      console.println((e.isCycle() ? CYCLE_DETECTED : BUDGET_EXCEEDED) + e.getMessage());
+      console.printTerm(PARTIAL, e.getPartialCode());
+      console.println("");
+      console.println(LINE);
+      return;
+    }
+    console.printTerm(RESULT, code);
+    if (context.options.modeSwitch) {
+      console.println(String.format("Mode  : %s (steps: %d, reductions: %d%s)",
+          context.options.mode, context.stepCount, context.reductionCount,
+          0 < context.collapsedCount ? ", collapsed: " + context.collapsedCount : ""));
+    }
+    console.printWarning(code);
+    console.println("");
+    console.println(LINE);
   }
 }
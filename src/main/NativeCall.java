@@ -0,0 +1,158 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * NativeCombinatorに渡す引数と、計算結果の書き込み先。<br>
+ * 引数はコードのトークン列を直接参照し、文字列には変換しない。
+ * 計算結果はトークン単位で書き込み、整形フォーマットと同様にコードの先頭に挿入する。
+ * @author Shinichi Oouchi
+ */
+public final class NativeCall {
+  /**
+   * 開き括弧のトークン。
+   */
+  public static final int OPEN = Tokenizer.OPEN;
+
+  /**
+   * 閉じ括弧のトークン。
+   */
+  public static final int CLOSE = Tokenizer.CLOSE;
+
+  /**
+   * 定義されていないコンビネータのトークン。
+   */
+  public static final int NONE = Integer.MIN_VALUE;
+
+  /**
+   * マクロ関数の名前とトークンの対応。
+   */
+  private static volatile Map<String, Integer> tokenMap;
+
+  /**
+   * 引数を含むトークン列。
+   */
+  private int[] tokens;
+
+  /**
+   * 引数の開始位置。
+   */
+  private int[] argStarts;
+
+  /**
+   * 引数の終了位置。
+   */
+  private int[] argEnds;
+
+  /**
+   * 引数の数。
+   */
+  private int argsCount;
+
+  /**
+   * 計算結果のトークン列。
+   */
+  private int[] result = new int[16];
+
+  /**
+   * 計算結果のトークンの数。
+   */
+  private int length;
+
+  NativeCall() {
+  }
+
+  /**
+   * 引数を設定し、計算結果を空にする。
+   */
+  final void reset(int[] someTokens, int[] someArgStarts, int[] someArgEnds, int anArgsCount) {
+    tokens = someTokens;
+    argStarts = someArgStarts;
+    argEnds = someArgEnds;
+    argsCount = anArgsCount;
+    length = 0;
+  }
+
+  /**
+   * 定義されたコンビネータのトークンを返す。
+   * @param name コンビネータの名前
+   * @return トークン。定義されていない場合はNONE
+   */
+  public static int getToken(String name) {
+    Map<String, Integer> map = tokenMap;
+    if (map == null) {
+      map = new HashMap<>();
+      for (int i = Code.macroFunctionList.size() - 1; 0 <= i; i--) {
+        // 同じ名前が複数定義された場合は、先に定義したものを優先する
+        map.put(Code.macroFunctionList.get(i).name, i);
+      }
+      tokenMap = map;
+    }
+    Integer token = map.get(name);
+    return token == null ? NONE : token;
+  }
+
+  /**
+   * 引数の数を返す。
+   */
+  public int getArgsCount() {
+    return argsCount;
+  }
+
+  /**
+   * index番目の引数のトークンの数を返す。
+   */
+  public int getArgLength(int index) {
+    return argEnds[index] - argStarts[index];
+  }
+
+  /**
+   * index番目の引数のposition番目のトークンを返す。
+   */
+  public int getArgToken(int index, int position) {
+    return tokens[argStarts[index] + position];
+  }
+
+  /**
+   * 計算結果にトークンを追加する。
+   * @param token トークン。OPEN、CLOSE、またはgetTokenで得たトークン
+   * @throws IllegalArgumentException 定義されたコンビネータのトークンでも括弧でもない場合
+   */
+  public void append(int token) {
+    if (token != OPEN && token != CLOSE && Code.tokenizer.getMacro(token) == null) {
+      throw new IllegalArgumentException("Not a combinator token: " + token);
+    }
+    if (result.length == length) {
+      result = Arrays.copyOf(result, length * 2);
+    }
+    result[length++] = token;
+  }
+
+  /**
+   * 計算結果にindex番目の引数を追加する。
+   */
+  public void appendArg(int index) {
+    int argLength = getArgLength(index);
+    if (result.length < length + argLength) {
+      result = Arrays.copyOf(result, Math.max(result.length * 2, length + argLength));
+    }
+    System.arraycopy(tokens, argStarts[index], result, length, argLength);
+    length += argLength;
+  }
+
+  /**
+   * 計算結果のトークン列を返す。先頭からgetLength個のトークンが計算結果となる。
+   */
+  final int[] getResult() {
+    return result;
+  }
+
+  /**
+   * 計算結果のトークンの数を返す。
+   */
+  final int getLength() {
+    return length;
+  }
+}
@@ -0,0 +1,24 @@
+package main;
+
+/**
+ * Javaで実装したコンビネータの計算。<br>
+ * Combinators.csvの4列目に名前を指定したマクロ関数は、整形フォーマットに当てはめる前にreduceを呼ぶ。
+ * reduceが計算しなかった場合は、通常どおり整形フォーマットで計算する。
+ * 実装はServiceLoader(META-INF/services/main.NativeCombinator)で登録するか、
+ * 4列目に完全修飾クラス名を指定する。いずれも引数のないpublicなコンストラクタを持つ必要がある。
+ * 複数のスレッドから同時に呼ばれるため、状態を持たないようにする。
+ * @author Shinichi Oouchi
+ */
+public interface NativeCombinator {
+  /**
+   * Combinators.csvの4列目に指定する名前を返す。
+   */
+  String getName();
+
+  /**
+   * 引数を受け取って計算し、計算結果をcallに書き込む。
+   * @param call 引数と計算結果の書き込み先
+   * @return 計算した場合はtrue。falseの場合は整形フォーマットで計算する
+   */
+  boolean reduce(NativeCall call);
+}
@@ -0,0 +1,143 @@
+package main;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 括弧の中のコードと、その計算結果を対応付けて保持するキャッシュ。<br>
+ * 変数を含まないコードの計算結果は前後のコードに依存しないため、
+ * 同じコードが再び現れた場合は計算せずに計算結果を再利用する。
+ * 保持する数が上限を超えた場合は、最も長く使われていないものから捨てる。
+ * 複数のCLCodeを同時に計算する場合も1つのキャッシュを共有する。
+ * @author Shinichi Oouchi
+ */
+final class NormalFormCache {
+  /**
+   * コードのトークン列と計算結果。最後に使った順に並べる。
+   */
+  private final LinkedHashMap<Key, NormalForm> map;
+
+  /**
+   * 計算結果を再利用できた回数。
+   */
+  private long hitCount = 0;
+
+  /**
+   * 計算結果が見つからなかった回数。
+   */
+  private long missCount = 0;
+
+  /**
+   * 上限を超えて捨てた回数。
+   */
+  private long evictionCount = 0;
+
+  /**
+   * コンストラクタ。
+   * @param capacity 保持する計算結果の数の上限
+   */
+  NormalFormCache(int capacity) {
+    map = new LinkedHashMap<Key, NormalForm>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, NormalForm> eldest) {
+        if (capacity < size()) {
+          evictionCount++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * コードの計算結果を返す。
+   * @param key コードのトークン列
+   * @return 計算結果。保持していない場合はnull
+   */
+  synchronized NormalForm get(Key key) {
+    NormalForm entry = map.get(key);
+    if (entry == null) {
+      missCount++;
+    } else {
+      hitCount++;
+    }
+    return entry;
+  }
+
+  /**
+   * コードの計算結果を保持する。
+   * @param key コードのトークン列
+   * @param entry 計算結果
+   */
+  synchronized void put(Key key, NormalForm entry) {
+    map.put(key, entry);
+  }
+
+  /**
+   * 利用状況を返す。
+   */
+  synchronized String getStatistics() {
+    long total = hitCount + missCount;
+    return String.format("hits %d, misses %d (%.1f%% hit), evictions %d, entries %d",
+        hitCount, missCount, total == 0 ? 0.0 : hitCount * 100.0 / total, evictionCount, map.size());
+  }
+
+  /**
+   * キャッシュのキーとなるコードのトークン列。
+   */
+  static final class Key {
+    private final int[] tokens;
+    private final int hash;
+
+    private Key(int[] someTokens) {
+      tokens = someTokens;
+      hash = Arrays.hashCode(tokens);
+    }
+
+    /**
+     * トークン列の範囲からキーを生成する。
+     * @param tokens トークン列
+     * @param from 開始位置
+     * @param to 終了位置(この位置は含まない)
+     * @param tokenizer トークン列を変換したTokenizer
+     * @return キー。範囲が空の場合や変数を含む場合はnull
+     */
+    static Key of(int[] tokens, int from, int to, Tokenizer tokenizer) {
+      if (to <= from) {
+        return null;
+      }
+      for (int i = from; i < to; i++) {
+        if (tokenizer.isVariable(tokens[i])) {
+          return null;
+        }
+      }
+      return new Key(Arrays.copyOfRange(tokens, from, to));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals(tokens, ((Key) obj).tokens);
+    }
+  }
+
+  /**
+   * 計算結果のトークン列と、そのCLTermの数。
+   */
+  static final class NormalForm {
+    final int[] tokens;
+    final int clTermCount;
+
+    NormalForm(int[] someTokens, int aClTermCount) {
+      tokens = someTokens;
+      clTermCount = aClTermCount;
+    }
+  }
+}
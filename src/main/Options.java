@@ -0,0 +1,266 @@
+package main;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 実行オプションを保持するクラス。<br>
+ * コマンドライン引数から一度だけ生成し、以降は変更しない。
+ * @author Shinichi Oouchi
+ */
+final class Options {
+  /**
+   * 計算を終える形として指定できる値。
+   */
+  static final List<String> MODES = Arrays.asList("whnf", "nf");
+
+  /**
+   * 計算過程を表示するスイッチ。
+   */
+  final boolean printSwitch;
+
+  /**
+   * コンビネータが保持するコンビネータのリストを表示するスイッチ。
+   */
+  final boolean listSwitch;
+
+  /**
+   * インデント整形を行うスイッチ。
+   */
+  final boolean indentSwitch;
+
+  /**
+   * 計算を追跡できるように挟むスリープタイム。
+   */
+  final int waitTime;
+
+  /**
+   * グラフ簡約で計算するスイッチ。
+   */
+  final boolean graphSwitch;
+
+  /**
+   * グラフ簡約のノードをヒープ外のメモリに保持するスイッチ。
+   */
+  final boolean offHeapSwitch;
+
+  /**
+   * ファイルの各行を同時に計算するスレッドの数。
+   */
+  final int jobs;
+
+  /**
+   * 1つのCLCodeで実行できる簡約の回数の上限。0の場合は制限しない。
+   */
+  final long maxSteps;
+
+  /**
+   * 計算中の項の大きさの上限。0の場合は制限しない。<br>
+   * 文字列の書き換えではトークンの数、グラフ簡約ではノードの数で数える。
+   */
+  final long maxSize;
+
+  /**
+   * 1つのCLCodeの計算にかけられる時間(ミリ秒)。0の場合は制限しない。
+   */
+  final long timeout;
+
+  /**
+   * 計算過程の出力を別スレッドで書き出すスイッチ。
+   */
+  final boolean asyncSwitch;
+
+  /**
+   * 括弧の中の計算結果を保持する数。0の場合は保持しない。
+   */
+  final int cacheSize;
+
+  /**
+   * 計算過程をバイナリ形式で記録するファイルの名前。記録しない場合はnull。
+   */
+  final String traceFile;
+
+  /**
+   * 計算の統計情報を書き出すファイルの名前。書き出さない場合はnull。
+   */
+  final String statsFile;
+
+  /**
+   * 簡約ごとの経路をフレームグラフ用の形式で書き出すファイルの名前。書き出さない場合はnull。
+   */
+  final String profileFile;
+
+  /**
+   * 入力をラムダ式として読み、コンビネータの式に変換してから計算するスイッチ。
+   */
+  final boolean lambdaSwitch;
+
+  /**
+   * 計算が以前と同じ状態に戻ったことを検出して計算を打ち切るスイッチ。
+   */
+  final boolean cycleSwitch;
+
+  /**
+   * 読み込み時に部分評価した定義を使わず、元の定義で1ステップずつ計算するスイッチ。
+   */
+  final boolean stepwiseSwitch;
+
+  /**
+   * 読み込み時に部分評価した定義を使うスイッチ。
+   * 弱頭部正規形は部分評価した定義で変わるため、計算結果の変わらない-mode nfで、-stepwiseを指定しない場合のみ使う。
+   */
+  final boolean foldSwitch;
+
+  /**
+   * 正規形まで計算する際に、先頭が計算できなくなったコードの引数を並列に計算するスイッチ。
+   */
+  final boolean forkSwitch;
+
+  /**
+   * 引数を他のスレッドで計算する、括弧を含めたトークンの数の下限。
+   */
+  final int forkThreshold;
+
+  /**
+   * 計算結果と計算過程の項を表示する文字数の上限。0の場合は制限しない。
+   */
+  final int width;
+
+  /**
+   * 計算結果と計算過程の項で、中身を表示する括弧の深さの上限。0の場合は制限しない。
+   */
+  final int depth;
+
+  /**
+   * 計算結果と計算過程の項で、繰り返し現れる括弧を名前で表示するスイッチ。
+   */
+  final boolean shareSwitch;
+
+  /**
+   * 常駐して、ローカルのTCPポートで計算の要求を受け付けるスイッチ。
+   */
+  final boolean serverSwitch;
+
+  /**
+   * 要求を受け付けるポート番号。0の場合は空いているポートを使う。
+   */
+  final int serverPort;
+
+  /**
+   * 計算を終える形。"whnf"は弱頭部正規形、"nf"は引数も含めた正規形。
+   */
+  final String mode;
+
+  /**
+   * 引数も正規形になるまで計算するスイッチ。
+   */
+  final boolean normalSwitch;
+
+  /**
+   * 計算を終える形が指定されたかどうか。指定された場合のみステップ数を表示する。
+   */
+  final boolean modeSwitch;
+
+  private Options(List<String> argsList) {
+    printSwitch = (argsList.contains("-s") || argsList.contains("-silent")) ? false : true;
+    listSwitch = (argsList.contains("-l") || argsList.contains("-list")) ? true : false;
+    indentSwitch = (argsList.contains("-n") || argsList.contains("-noindent")) ? false : true;
+    waitTime = getNumber(argsList, 0, "-w", "-wait");
+    graphSwitch = argsList.contains("-g") || argsList.contains("-graph");
+    offHeapSwitch = argsList.contains("-offheap");
+    jobs = Math.max(1, getNumber(argsList, 1, "-j", "-jobs"));
+    maxSteps = getLong(argsList, 0, "-maxsteps");
+    maxSize = getLong(argsList, 0, "-maxsize");
+    timeout = getLong(argsList, 0, "-timeout");
+    asyncSwitch = argsList.contains("-async");
+    cacheSize = getNumber(argsList, 0, "-cache");
+    traceFile = getString(argsList, "-trace");
+    statsFile = getString(argsList, "-stats");
+    profileFile = getString(argsList, "-profile");
+    lambdaSwitch = argsList.contains("-lambda");
+    cycleSwitch = argsList.contains("-cycle");
+    stepwiseSwitch = argsList.contains("-stepwise");
+    forkSwitch = argsList.contains("-fork");
+    forkThreshold = Math.max(1, getNumber(argsList, 4096, "-fork"));
+    width = Math.max(0, getNumber(argsList, 0, "-width"));
+    depth = Math.max(0, getNumber(argsList, 0, "-depth"));
+    shareSwitch = argsList.contains("-share");
+    serverSwitch = argsList.contains("-server");
+    serverPort = getNumber(argsList, 0, "-server");
+    String modeName = getString(argsList, "-mode");
+    if (modeName != null && !MODES.contains(modeName)) {
+      throw new IllegalArgumentException("Unknown mode: " + modeName + " (available: " + String.join(",", MODES) + ")");
+    }
+    modeSwitch = modeName != null;
+    mode = modeSwitch ? modeName : "whnf";
+    normalSwitch = "nf".equals(mode);
+    foldSwitch = normalSwitch && !stepwiseSwitch;
+  }
+
+  /**
+   * コマンドライン引数から実行オプションを生成する。
+   * @param args コマンドライン引数
+   * @return 実行オプション
+   * @throws IllegalArgumentException -modeに指定できない値を指定した場合
+   */
+  static Options parse(String[] args) {
+    return new Options(Arrays.asList(args));
+  }
+
+  /**
+   * オプションの次の引数に指定された数値を返す。<br>
+   * 後に指定したオプションを優先する。
+   * @param argsList コマンドライン引数
+   * @param defaultValue オプションが指定されていない場合の値
+   * @param names オプションの名前
+   * @return 数値
+   */
+  private static int getNumber(List<String> argsList, int defaultValue, String... names) {
+    return (int) Math.min(Integer.MAX_VALUE, getLong(argsList, defaultValue, names));
+  }
+
+  /**
+   * オプションの次の引数を返す。
+   * @param argsList コマンドライン引数
+   * @param name オプションの名前
+   * @return 引数。オプションが指定されていない場合はnull
+   */
+  static String getString(List<String> argsList, String name) {
+    return getString(argsList, name, null);
+  }
+
+  /**
+   * オプションの次の引数を返す。
+   * @param argsList コマンドライン引数
+   * @param name オプションの名前
+   * @param defaultValue オプションが指定されていない場合の値
+   * @return 引数
+   */
+  static String getString(List<String> argsList, String name, String defaultValue) {
+    int index = argsList.indexOf(name);
+    return 0 <= index && index + 1 < argsList.size() ? argsList.get(index + 1) : defaultValue;
+  }
+
+  /**
+   * オプションの次の引数に指定された数値をlongで返す。<br>
+   * 後に指定したオプションを優先する。
+   * @param argsList コマンドライン引数
+   * @param defaultValue オプションが指定されていない場合の値
+   * @param names オプションの名前
+   * @return 数値
+   */
+  static long getLong(List<String> argsList, long defaultValue, String... names) {
+    long value = defaultValue;
+    for (String name : names) {
+      if (argsList.contains(name)) {
+        int index = argsList.indexOf(name);
+        index = Math.min(index + 1, argsList.size() - 1);
+        String number = argsList.get(index);
+        if (number.matches("^[0-9]+")) {
+          value = number.length() < 19 ? Long.parseLong(number) : Long.MAX_VALUE;
+        }
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,202 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 簡約ごとに、括弧の中にもぐった経路と実行したマクロ関数を記録し、
+ * 実行の最後にフレームグラフ用の折りたたみスタック形式で書き出すクラス。<br>
+ * 記録はCLCodeごとにLineに集め、Statisticsと同じく入力の順に追加する。
+ * 経路は木として保持し、簡約のたびに現在の位置の子の回数を数えるのみとする。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 書き出す形式: 1行に1つの経路と簡約の回数を"line:1;();arg:x;S 1234"の形式で書き出す。<br>
+ * <ul>
+ *   <li><p> line:N  - 入力のN番目のCLCode。</p></li>
+ *   <li><p> ()      - 先頭の括弧の中にもぐった(BracketStrategy)。</p></li>
+ *   <li><p> arg:x   - 先頭がxで計算できなくなった項の、引数の中にもぐった(-mode nf)。</p></li>
+ *   <li><p> 最後    - 実行したマクロ関数の名前。</p></li>
+ * </ul>
+ * 名前に含まれる";"と空白は"_"に置き換える。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class Profile {
+  /**
+   * 経路の種類: 実行したマクロ関数。
+   */
+  private static final int REDUCE = 0;
+
+  /**
+   * 経路の種類: 先頭の括弧。
+   */
+  static final int BRACKET = 1;
+
+  /**
+   * 経路の種類: 正規形にする引数。
+   */
+  static final int ARGUMENT = 2;
+
+  /**
+   * 入力の順に並べたCLCodeごとの記録。
+   */
+  private final List<Line> lines = new ArrayList<>();
+
+  /**
+   * CLCodeの記録を追加する。
+   * @param line 記録。記録していない場合はnull
+   */
+  final void add(Line line) {
+    if (line != null) {
+      line.number = lines.size() + 1;
+      lines.add(line);
+    }
+  }
+
+  /**
+   * 記録を折りたたみスタック形式で書き出す。
+   * @param fileName 書き出すファイルの名前
+   */
+  final void write(String fileName) {
+    try (PrintWriter pw = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8")))) {
+      for (Line line : lines) {
+        line.writeTo(pw);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * 経路の1つのフレームの名前を返す。
+   */
+  private static String getLabel(long key) {
+    int kind = (int) (key >>> 32);
+    if (kind == BRACKET) {
+      return "()";
+    }
+    String name = Code.tokenizer.getName((int) key).replaceAll("[;\\s]", "_");
+    return kind == ARGUMENT ? "arg:" + name : name;
+  }
+
+  /**
+   * 1つのCLCodeの記録。計算中は現在の経路の位置を保持する。
+   */
+  static final class Line {
+    /**
+     * 入力の何番目のCLCodeか。
+     */
+    private int number;
+
+    /**
+     * 経路の木の根。
+     */
+    private final Node root = new Node(0, null);
+
+    /**
+     * 現在の経路の位置。
+     */
+    private Node current = root;
+
+    /**
+     * 括弧の中にもぐったことを記録する。
+     * @param kind 経路の種類。BRACKETまたはARGUMENT
+     * @param token ARGUMENTの場合は計算できなくなった項の先頭のトークン
+     */
+    final void enter(int kind, int token) {
+      current = current.child(((long) kind << 32) | (token & 0xFFFFFFFFL));
+    }
+
+    /**
+     * 括弧の中から外側に戻ったことを記録する。
+     */
+    final void leave() {
+      if (current.parent != null) {
+        current = current.parent;
+      }
+    }
+
+    /**
+     * マクロ関数の実行を記録する。
+     * @param token マクロ関数のトークン
+     */
+    final void reduce(int token) {
+      current.child(((long) REDUCE << 32) | (token & 0xFFFFFFFFL)).count++;
+    }
+
+    /**
+     * 簡約を記録した経路を1行ずつ書き出す。<br>
+     * 括弧の中にもぐった数が大きい場合にも備え、再帰せずに木をたどる。
+     */
+    private void writeTo(PrintWriter pw) {
+      String prefix = "line:" + number;
+      List<Node> stack = new ArrayList<>();
+      stack.add(root);
+      while (!stack.isEmpty()) {
+        Node node = stack.remove(stack.size() - 1);
+        if (0 < node.count) {
+          List<String> path = new ArrayList<>();
+          for (Node n = node; n.parent != null; n = n.parent) {
+            path.add(getLabel(n.key));
+          }
+          StringBuilder sb = new StringBuilder(prefix);
+          for (int i = path.size() - 1; 0 <= i; i--) {
+            sb.append(';').append(path.get(i));
+          }
+          pw.println(sb.append(' ').append(node.count));
+        }
+        for (int i = node.size - 1; 0 <= i; i--) {
+          stack.add(node.children[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * 経路の木のノード。子は数が少ないため、配列を先頭から探す。
+   */
+  private static final class Node {
+    private final long key;
+    private final Node parent;
+    private long[] keys = new long[4];
+    private Node[] children = new Node[4];
+    private int size = 0;
+
+    /**
+     * このノードで終わる経路で実行した簡約の回数。
+     */
+    private long count = 0;
+
+    Node(long aKey, Node aParent) {
+      key = aKey;
+      parent = aParent;
+    }
+
+    /**
+     * キーに対応する子を返す。存在しない場合は作成する。
+     */
+    Node child(long aKey) {
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == aKey) {
+          return children[i];
+        }
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        children = Arrays.copyOf(children, size * 2);
+      }
+      keys[size] = aKey;
+      return children[size++] = new Node(aKey, this);
+    }
+  }
+}
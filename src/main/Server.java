@@ -0,0 +1,286 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * 常駐して、ローカルのTCPポートで計算の要求を受け付けるクラス。<br>
+ * マクロ関数の定義とJITコンパイル済みのコードを使い回すため、起動のたびの読み込みを省ける。
+ * 要求ごとにOptionsとContextを生成し、要求の間で計算の状態を共有しない。
+ * 変数と未定義のコンビネータの名前も要求ごとのTokenizerに登録し、要求が終われば捨てる。
+ * 括弧の中の計算結果のキャッシュのみ、起動時に-cacheを指定した場合にすべての要求で共有する。
+ * 1つの要求が計算資源を使い尽くさないように、簡約の回数、項の大きさ、計算時間には上限を設け、
+ * 要求で指定しない場合や上限より大きい値を指定した場合は上限を使う。出力も要求ごとに文字数の上限まで保持する。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * プロトコル: 1行に1つの要求を送り、要求の順に応答を受け取る。文字コードはUTF-8。<br>
+ * <ul>
+ *   <li><p> 要求      - "オプション&lt;TAB&gt;CLCode"。オプションはコマンドライン引数と同じ書式で空白区切り。
+ *                       タブを含まない場合は行全体をCLCodeとし、オプションを指定しない。
+ *                       -trace、-stats、-profile、-j、-serverは指定できない。
+ *                       -maxsteps、-maxsize、-timeoutは起動時の値(指定しない場合はデフォルトの上限)まで。</p></li>
+ *   <li><p> 応答      - "OK 行数"、続けて行数分の出力(通常の実行時と同じ表示)、
+ *                       最後に"STATS "と統計情報(-statsのJSONと同じ形式の1行)。
+ *                       制限を超えた場合は、出力に"&lt;&lt; BUDGET EXCEEDED &gt;&gt;"と途中の項を含む。</p></li>
+ *   <li><p> エラー    - "ERROR メッセージ"の1行。出力が文字数の上限を超えた場合も返す。</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class Server {
+  private static final String OK = "OK ";
+  private static final String ERROR = "ERROR ";
+  private static final String STATS = "STATS ";
+
+  /**
+   * 起動時に指定しなかった場合の、1つの要求で実行できる簡約の回数の上限。
+   */
+  private static final long DEFAULT_MAX_STEPS = 1_000_000;
+
+  /**
+   * 起動時に指定しなかった場合の、1つの要求で計算中の項の大きさの上限。
+   */
+  private static final long DEFAULT_MAX_SIZE = 1 << 20;
+
+  /**
+   * 起動時に指定しなかった場合の、1つの要求の計算にかけられる時間(ミリ秒)の上限。
+   */
+  private static final long DEFAULT_TIMEOUT = 10_000;
+
+  /**
+   * 1つの要求で保持する出力の文字数の上限。
+   */
+  private static final int MAX_OUTPUT_LENGTH = 1 << 20;
+
+  /**
+   * 要求で上限まで制限する実行オプション。
+   */
+  private static final List<String> BUDGET_OPTIONS = Arrays.asList("-maxsteps", "-maxsize", "-timeout");
+
+  /**
+   * 括弧の中の計算結果のキャッシュ。使わない場合はnull。
+   */
+  private final NormalFormCache cache;
+
+  /**
+   * 同時に計算する要求の数を制限するセマフォ。
+   */
+  private final Semaphore permits;
+
+  /**
+   * 1つの要求で実行できる簡約の回数の上限。
+   */
+  private final long maxSteps;
+
+  /**
+   * 1つの要求で計算中の項の大きさの上限。
+   */
+  private final long maxSize;
+
+  /**
+   * 1つの要求の計算にかけられる時間(ミリ秒)の上限。
+   */
+  private final long timeout;
+
+  private Server(NormalFormCache aCache, int jobs, Options options) {
+    cache = aCache;
+    permits = new Semaphore(jobs);
+    maxSteps = 0 < options.maxSteps ? options.maxSteps : DEFAULT_MAX_STEPS;
+    maxSize = 0 < options.maxSize ? options.maxSize : DEFAULT_MAX_SIZE;
+    timeout = 0 < options.timeout ? options.timeout : DEFAULT_TIMEOUT;
+  }
+
+  /**
+   * 要求の受け付けを開始する。プロセスが終了するまで戻らない。<br>
+   * 同時に計算する要求の数は-jで指定する。指定しない場合はプロセッサの数とする。
+   * -maxsteps、-maxsize、-timeoutを指定した場合は、要求ごとの上限とする。
+   * @param options 起動時の実行オプション
+   * @param cache 括弧の中の計算結果のキャッシュ。使わない場合はnull
+   * @param out 待ち受けるアドレスの出力先
+   */
+  static void run(Options options, NormalFormCache cache, PrintWriter out) {
+    int jobs = 1 < options.jobs ? options.jobs : Runtime.getRuntime().availableProcessors();
+    Server server = new Server(cache, jobs, options);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try (ServerSocket serverSocket = new ServerSocket(options.serverPort, 50, InetAddress.getLoopbackAddress())) {
+      out.println(String.format("Listening: %s:%d (%d jobs, maxsteps: %d, maxsize: %d, timeout: %d ms)",
+          serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(), jobs,
+          server.maxSteps, server.maxSize, server.timeout));
+      out.flush();
+      while (true) {
+        Socket socket = serverSocket.accept();
+        executor.execute(() -> server.serve(socket));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * 1つの接続から要求を読み、接続が閉じられるまで応答を返す。空行は無視する。
+   * @param socket 接続
+   */
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      String request;
+      while ((request = in.readLine()) != null) {
+        if (!request.isEmpty()) {
+          writer.write(evaluate(request));
+          writer.flush();
+        }
+      }
+    } catch (IOException e) {
+      // 接続が切れた場合はその接続の処理のみを終える
+    }
+  }
+
+  /**
+   * 1つの要求を計算し、応答を返す。
+   * @param request 要求の行
+   * @return 応答。改行で終わる
+   */
+  private String evaluate(String request) {
+    int tab = request.indexOf('\t');
+    String arguments = tab < 0 ? "" : request.substring(0, tab).trim();
+    String clcode = request.substring(tab + 1);
+    Options options;
+    try {
+      options = Options.parse(limitBudget(arguments.isEmpty() ? new String[0] : arguments.split("\\s+")));
+    } catch (IllegalArgumentException e) {
+      return ERROR + e.getMessage() + "\n";
+    }
+    if (options.traceFile != null || options.statsFile != null || options.profileFile != null
+        || 1 < options.jobs || options.serverSwitch) {
+      return ERROR + "-trace, -stats, -profile, -j and -server are not available in server mode.\n";
+    }
+    if (clcode.trim().isEmpty()) {
+      return ERROR + "CLCode is empty.\n";
+    }
+
+    LimitedWriter buffer = new LimitedWriter(MAX_OUTPUT_LENGTH);
+    Context context = new Context(options, new PrintWriter(buffer), cache, null, true, Code.tokenizer.newScope());
+    permits.acquireUninterruptibly();
+    try {
+      Main.executeCode(clcode, context, false);
+    } catch (RuntimeException | StackOverflowError e) {
+      context.console.println("<< ERROR >> " + e);
+      context.console.flush();
+    } finally {
+      permits.release();
+    }
+    if (buffer.isOverflowed()) {
+      return ERROR + "output > " + MAX_OUTPUT_LENGTH + " chars\n";
+    }
+
+    List<String> lines = new BufferedReader(new StringReader(buffer.toString())).lines()
+        .collect(Collectors.toList());
+    StringBuilder sb = new StringBuilder(OK).append(lines.size()).append('\n');
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    return new String(sb.append(STATS).append(Statistics.toJson(context.stats)).append('\n'));
+  }
+
+  /**
+   * 要求のオプションから-maxsteps、-maxsize、-timeoutを取り除き、上限を超えない値を指定し直す。<br>
+   * 指定しなかった場合、0(制限しない)を指定した場合、上限より大きい値を指定した場合は上限を使う。
+   * @param args 要求のオプション
+   * @return 上限を適用したオプション
+   */
+  private String[] limitBudget(String[] args) {
+    List<String> argsList = Arrays.asList(args);
+    List<String> limited = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!BUDGET_OPTIONS.contains(args[i])) {
+        limited.add(args[i]);
+      } else if (i + 1 < args.length && args[i + 1].matches("^[0-9]+")) {
+        // 数値の引数も取り除く
+        i++;
+      }
+    }
+    limited.add("-maxsteps");
+    limited.add(String.valueOf(limit(Options.getLong(argsList, 0, "-maxsteps"), maxSteps)));
+    limited.add("-maxsize");
+    limited.add(String.valueOf(limit(Options.getLong(argsList, 0, "-maxsize"), maxSize)));
+    limited.add("-timeout");
+    limited.add(String.valueOf(limit(Options.getLong(argsList, 0, "-timeout"), timeout)));
+    return limited.toArray(new String[limited.size()]);
+  }
+
+  /**
+   * 要求で指定した値と上限の小さい方を返す。0は制限しない値なので上限を返す。
+   */
+  private static long limit(long requested, long maximum) {
+    return 0 < requested && requested < maximum ? requested : maximum;
+  }
+
+  /**
+   * 文字数の上限まで出力を保持する出力先。<br>
+   * 上限を超えた最初の書き込みで計算を打ち切る例外を投げ、以降の書き込みは捨てる。
+   */
+  private static final class LimitedWriter extends Writer {
+    private final StringBuilder sb = new StringBuilder();
+    private final int maxLength;
+    private boolean overflowed = false;
+
+    LimitedWriter(int aMaxLength) {
+      maxLength = aMaxLength;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      if (overflowed) {
+        return;
+      }
+      if (maxLength - sb.length() < len) {
+        overflowed = true;
+        throw new BudgetExceededException("output > " + maxLength + " chars");
+      }
+      sb.append(cbuf, off, len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * 上限を超えた書き込みがあったかどうかを返す。
+     */
+    boolean isOverflowed() {
+      return overflowed;
+    }
+
+    @Override
+    public String toString() {
+      return new String(sb);
+    }
+  }
+}
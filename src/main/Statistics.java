@@ -0,0 +1,335 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 計算の統計情報を集め、実行の最後にJSONまたはCSVで書き出すクラス。<br>
+ * 統計情報はCLCodeごとにLineに集め、計算が終わった順ではなく入力の順に追加する。
+ * 統計情報を集めない場合はLineを生成せず、計算中の記録はnullの確認のみとなる。
+ * @author Shinichi Oouchi
+ */
+final class Statistics {
+  /**
+   * 入力の順に並べたCLCodeごとの統計情報。
+   */
+  private final List<Line> lines = new ArrayList<>();
+
+  /**
+   * CLCodeの統計情報を追加する。
+   * @param line 統計情報。集めていない場合はnull
+   */
+  final void add(Line line) {
+    if (line != null) {
+      line.number = lines.size() + 1;
+      lines.add(line);
+    }
+  }
+
+  /**
+   * 統計情報を書き出す。ファイル名が".csv"で終わる場合はCSV、それ以外はJSONで書き出す。
+   * @param fileName 書き出すファイルの名前
+   */
+  final void write(String fileName) {
+    Line total = new Line();
+    total.status = "";
+    for (Line line : lines) {
+      total.merge(line);
+    }
+    try (PrintWriter pw = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8")))) {
+      if (fileName.endsWith(".csv")) {
+        writeCsv(pw, total);
+      } else {
+        writeJson(pw, total);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * 1つのCLCodeを1行として、CSVで書き出す。マクロ関数ごとの簡約の回数は1つの列にする。
+   */
+  private void writeCsv(PrintWriter pw, Line total) {
+    StringBuilder sb = new StringBuilder(
+        "line,status,time_ms,steps,reductions,peak_size,peak_nest,descents,tokens_copied,tokens_allocated");
+    for (int i = 0; i < total.counts.length; i++) {
+      if (total.counts[i] != 0) {
+        sb.append(',');
+        appendCsv(sb, Code.tokenizer.getName(i));
+      }
+    }
+    pw.println(sb.append(",code"));
+    for (Line line : lines) {
+      pw.println(toCsv(String.valueOf(line.number), line, total));
+    }
+    pw.println(toCsv("total", total, total));
+  }
+
+  /**
+   * CSVの1行を返す。
+   * @param number 行の番号
+   * @param line 統計情報
+   * @param total 列に含めるマクロ関数を決める合計
+   */
+  private static String toCsv(String number, Line line, Line total) {
+    StringBuilder sb = new StringBuilder(number);
+    sb.append(',').append(line.status);
+    sb.append(',').append(String.format("%.3f", line.elapsedTime / 1e6));
+    sb.append(',').append(line.stepCount);
+    sb.append(',').append(line.reductionCount);
+    sb.append(',').append(line.peakSize);
+    sb.append(',').append(line.peakNest);
+    sb.append(',').append(line.descentCount);
+    sb.append(',').append(line.copiedTokens);
+    sb.append(',').append(line.allocatedTokens);
+    for (int i = 0; i < total.counts.length; i++) {
+      if (total.counts[i] != 0) {
+        sb.append(',').append(i < line.counts.length ? line.counts[i] : 0);
+      }
+    }
+    sb.append(',');
+    if (line.code != null) {
+      appendCsv(sb, line.code);
+    }
+    return new String(sb);
+  }
+
+  /**
+   * CLCodeごとの統計情報と合計をJSONで書き出す。
+   */
+  private void writeJson(PrintWriter pw, Line total) {
+    pw.println("{");
+    pw.println("  \"lines\": [");
+    for (int i = 0; i < lines.size(); i++) {
+      pw.println("    " + toJson(lines.get(i)) + (i < lines.size() - 1 ? "," : ""));
+    }
+    pw.println("  ],");
+    pw.println("  \"total\": " + toJson(total));
+    pw.println("}");
+  }
+
+  /**
+   * 統計情報をJSONのオブジェクトとして返す。1行で表し、改行を含まない。
+   */
+  static String toJson(Line line) {
+    StringBuilder sb = new StringBuilder("{");
+    if (0 < line.number) {
+      sb.append("\"line\": ").append(line.number).append(", ");
+    }
+    if (line.code != null) {
+      sb.append("\"code\": ");
+      appendJson(sb, line.code);
+      sb.append(", \"status\": \"").append(line.status).append("\", ");
+    }
+    sb.append("\"timeMs\": ").append(String.format("%.3f", line.elapsedTime / 1e6));
+    sb.append(", \"steps\": ").append(line.stepCount);
+    sb.append(", \"reductions\": ").append(line.reductionCount);
+    sb.append(", \"peakSize\": ").append(line.peakSize);
+    sb.append(", \"peakNest\": ").append(line.peakNest);
+    sb.append(", \"descents\": ").append(line.descentCount);
+    sb.append(", \"tokensCopied\": ").append(line.copiedTokens);
+    sb.append(", \"tokensAllocated\": ").append(line.allocatedTokens);
+    sb.append(", \"combinators\": {");
+    String separator = "";
+    for (int i = 0; i < line.counts.length; i++) {
+      if (line.counts[i] != 0) {
+        sb.append(separator);
+        appendJson(sb, Code.tokenizer.getName(i));
+        sb.append(": ").append(line.counts[i]);
+        separator = ", ";
+      }
+    }
+    return new String(sb.append("}}"));
+  }
+
+  /**
+   * 文字列をJSONの文字列として追加する。
+   */
+  private static void appendJson(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        sb.append('\\').append(ch);
+      } else if (ch < 0x20) {
+        sb.append(String.format("\\u%04x", (int) ch));
+      } else {
+        sb.append(ch);
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * 文字列をCSVの1つの値として追加する。
+   */
+  private static void appendCsv(StringBuilder sb, String value) {
+    sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+  }
+
+  /**
+   * 1つのCLCodeの統計情報。計算のステップごとに更新する。
+   */
+  static final class Line {
+    /**
+     * 入力の何番目のCLCodeか。合計の場合は0。
+     */
+    private int number;
+
+    /**
+     * 計算するCLCode。合計の場合はnull。
+     */
+    private String code;
+
+    /**
+     * 計算を終えた状態。
+     */
+    private String status = "skipped";
+
+    /**
+     * 計算を開始した時刻(System.nanoTime())。
+     */
+    private long startTime;
+
+    /**
+     * 計算にかかった時間(ナノ秒)。
+     */
+    private long elapsedTime;
+
+    /**
+     * 計算のステップ数。
+     */
+    private long stepCount;
+
+    /**
+     * 簡約の回数。
+     */
+    private long reductionCount;
+
+    /**
+     * マクロ関数のトークンごとの簡約の回数。
+     */
+    private long[] counts = new long[Code.macroFunctionList.size()];
+
+    /**
+     * 計算中の項の大きさの最大値。
+     */
+    private long peakSize;
+
+    /**
+     * 括弧の中にもぐった数の最大値。
+     */
+    private int peakNest;
+
+    /**
+     * 括弧の中にもぐった回数。
+     */
+    private long descentCount;
+
+    /**
+     * 書き換えで複製したトークンの数。
+     */
+    private long copiedTokens;
+
+    /**
+     * 確保したトークン列の長さの合計。
+     */
+    private long allocatedTokens;
+
+    /**
+     * CLCodeを記録する。
+     * @param aCode 計算するCLCode
+     */
+    final void setCode(String aCode) {
+      code = aCode;
+    }
+
+    /**
+     * 計算の開始を記録する。
+     */
+    final void start() {
+      startTime = System.nanoTime();
+    }
+
+    /**
+     * 計算の終了を記録する。
+     * @param context 計算の状態
+     * @param aStatus 計算を終えた状態
+     */
+    final void finish(Context context, String aStatus) {
+      elapsedTime = System.nanoTime() - startTime;
+      stepCount = context.stepCount;
+      reductionCount = context.reductionCount;
+      status = aStatus;
+    }
+
+    /**
+     * 計算のステップごとに、項の大きさと括弧の中にもぐっている数を記録する。
+     * @param size 項の大きさ
+     * @param nestCount 括弧の中にもぐっている数
+     */
+    final void observe(long size, int nestCount) {
+      if (peakSize < size) {
+        peakSize = size;
+      }
+      if (peakNest < nestCount) {
+        peakNest = nestCount;
+      }
+    }
+
+    /**
+     * マクロ関数の簡約を記録する。
+     * @param token マクロ関数のトークン
+     */
+    final void reduce(int token) {
+      counts[token]++;
+    }
+
+    /**
+     * 括弧の中にもぐったことを記録する。
+     */
+    final void descend() {
+      descentCount++;
+    }
+
+    /**
+     * トークンの複製を記録する。
+     * @param count 複製したトークンの数
+     */
+    final void copy(long count) {
+      copiedTokens += count;
+    }
+
+    /**
+     * トークン列の確保を記録する。
+     * @param length 確保したトークン列の長さ
+     */
+    final void allocate(long length) {
+      allocatedTokens += length;
+    }
+
+    /**
+     * 合計に統計情報を加える。最大値は大きい方をとる。
+     */
+    private void merge(Line line) {
+      elapsedTime += line.elapsedTime;
+      stepCount += line.stepCount;
+      reductionCount += line.reductionCount;
+      peakSize = Math.max(peakSize, line.peakSize);
+      peakNest = Math.max(peakNest, line.peakNest);
+      descentCount += line.descentCount;
+      copiedTokens += line.copiedTokens;
+      allocatedTokens += line.allocatedTokens;
+      for (int i = 0; i < line.counts.length; i++) {
+        counts[i] += line.counts[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * グラフ簡約で用いる項のノードを、intのレコードとしてまとめて保持する領域。<br>
+ * ノードはIDで参照し、同じ構造のノードは同じIDを共有する(ハッシュコンシング)。
+ * 到達できなくなったノードはcollectで取り除き、残ったノードを詰め直す。
+ * レコードは一定の数ごとの領域に分けて保持し、1つの領域の大きさがintの範囲を超えないようにする。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * ノードの種類:<br>
+ * <ul>
+ *   <li><p> LEAF  - コンビネータ、変数、未定義の文字。aはトークンの値</p></li>
+ *   <li><p> APP   - 関数適用。aは関数、bは引数のID</p></li>
+ *   <li><p> GROUP - 括弧で括られた項。aは括弧の中の項のID(空の括弧はNIL)</p></li>
+ *   <li><p> SLOT  - マクロ関数の整形フォーマット中の引数。aは引数の番号</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class TermArena {
+  static final int NIL = -1;
+
+  static final int LEAF = 0;
+  static final int APP = 1;
+  static final int GROUP = 2;
+  static final int SLOT = 3;
+
+  /**
+   * 引数スロットを含むノードに立てるフラグ。
+   */
+  private static final int SLOT_FLAG = 4;
+
+  /**
+   * 括弧の中の項がまだ計算されていないことを表す値。
+   */
+  static final int UNEVALUATED = -2;
+
+  /**
+   * 1ノードあたりのintの数。種類、a、b、括弧の計算結果の順に並ぶ。
+   */
+  private static final int RECORD = 4;
+
+  /**
+   * 1つの領域に保持するノードの数のビット数。最初の領域は小さく確保し、この数まで倍に広げる。
+   */
+  private static final int CHUNK_BITS = 20;
+
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /**
+   * 保持できるノードの数の上限。ハッシュ表の長さが配列の長さの上限を超えないように決める。
+   */
+  static final int MAX_SIZE = 1 << 29;
+
+  /**
+   * ノードを保持する領域。IDの上位ビットで領域を、下位ビットで領域の中の位置を決める。
+   */
+  private IntBuffer[] chunks = new IntBuffer[1];
+
+  /**
+   * 確保済みの領域に保持できるノードの数。
+   */
+  private int capacity;
+
+  /**
+   * ヒープ外のメモリを使用するかどうか。
+   */
+  private final boolean offHeap;
+
+  /**
+   * 使用中のノードの数。
+   */
+  private int size = 0;
+
+  /**
+   * ハッシュコンシング用のオープンアドレス法のハッシュ表。空の場合はNIL。
+   */
+  private int[] table = new int[1 << 10];
+
+  /**
+   * コンストラクタ。
+   * @param anOffHeap trueの場合、ノードをヒープ外のメモリに保持する
+   */
+  TermArena(boolean anOffHeap) {
+    offHeap = anOffHeap;
+    capacity = 1 << 10;
+    chunks[0] = allocate(capacity);
+    Arrays.fill(table, NIL);
+  }
+
+  /**
+   * ノードの領域を確保する。
+   * @param count ノードの数。CHUNK_SIZE以下
+   */
+  private IntBuffer allocate(int count) {
+    if (offHeap) {
+      return ByteBuffer.allocateDirect(count * RECORD * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+    return IntBuffer.allocate(count * RECORD);
+  }
+
+  /**
+   * ノードのレコードの値を返す。
+   * @param id ノードのID
+   * @param field レコードの中の位置
+   */
+  private int get(int id, int field) {
+    return chunks[id >>> CHUNK_BITS].get((id & CHUNK_MASK) * RECORD + field);
+  }
+
+  private void put(int id, int field, int value) {
+    chunks[id >>> CHUNK_BITS].put((id & CHUNK_MASK) * RECORD + field, value);
+  }
+
+  /**
+   * ノードを1つ追加できるように領域を広げる。最初の領域はCHUNK_SIZEまで倍に広げ、以降は領域を追加する。
+   * @throws BudgetExceededException ノードの数がMAX_SIZEに達した場合
+   */
+  private void grow() {
+    if (MAX_SIZE <= size) {
+      throw new BudgetExceededException("size > " + MAX_SIZE + " nodes (arena limit)");
+    }
+    if (capacity < CHUNK_SIZE) {
+      IntBuffer newRecords = allocate(Math.min(CHUNK_SIZE, capacity * 2));
+      chunks[0].position(0).limit(size * RECORD);
+      newRecords.put(chunks[0]);
+      newRecords.clear();
+      chunks[0] = newRecords;
+      capacity = newRecords.capacity() / RECORD;
+      return;
+    }
+    int chunk = capacity >>> CHUNK_BITS;
+    if (chunks.length == chunk) {
+      chunks = Arrays.copyOf(chunks, chunk * 2);
+    }
+    chunks[chunk] = allocate(CHUNK_SIZE);
+    capacity += CHUNK_SIZE;
+  }
+
+  /**
+   * 使用中のノードの数を返す。
+   */
+  int size() {
+    return size;
+  }
+
+  int kind(int id) {
+    return get(id, 0) & ~SLOT_FLAG;
+  }
+
+  int a(int id) {
+    return get(id, 1);
+  }
+
+  int b(int id) {
+    return get(id, 2);
+  }
+
+  /**
+   * 引数スロットを含むかどうか。
+   */
+  boolean hasSlot(int id) {
+    return (get(id, 0) & SLOT_FLAG) != 0;
+  }
+
+  /**
+   * 括弧の中の項の計算結果を返す。
+   * @return 計算結果のID。空の場合はNIL、未計算の場合はUNEVALUATED
+   */
+  int value(int id) {
+    return get(id, 3);
+  }
+
+  void setValue(int id, int value) {
+    put(id, 3, value);
+  }
+
+  int leaf(int token) {
+    return intern(LEAF, token, NIL);
+  }
+
+  int slot(int index) {
+    return intern(SLOT | SLOT_FLAG, index, NIL);
+  }
+
+  int app(int function, int argument) {
+    int flag = hasSlot(function) || hasSlot(argument) ? SLOT_FLAG : 0;
+    return intern(APP | flag, function, argument);
+  }
+
+  int group(int inner) {
+    int flag = inner != NIL && hasSlot(inner) ? SLOT_FLAG : 0;
+    return intern(GROUP | flag, inner, NIL);
+  }
+
+  private static int hash(int tag, int a, int b) {
+    int h = tag * 0x9E3779B9 + a;
+    h = h * 0x85EBCA6B + b;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * 同じ構造のノードが存在する場合はそのIDを、存在しない場合は新しく作成したノードのIDを返す。
+   */
+  private int intern(int tag, int a, int b) {
+    int mask = table.length - 1;
+    int index = hash(tag, a, b) & mask;
+    while (true) {
+      int id = table[index];
+      if (id == NIL) {
+        break;
+      }
+      if (get(id, 0) == tag && get(id, 1) == a && get(id, 2) == b) {
+        return id;
+      }
+      index = (index + 1) & mask;
+    }
+    if (size == capacity) {
+      grow();
+    }
+    int id = size++;
+    put(id, 0, tag);
+    put(id, 1, a);
+    put(id, 2, b);
+    put(id, 3, UNEVALUATED);
+    table[index] = id;
+    if (table.length < size * 2) {
+      rehash(table.length * 2);
+    }
+    return id;
+  }
+
+  private void rehash(int length) {
+    table = new int[length];
+    Arrays.fill(table, NIL);
+    int mask = length - 1;
+    for (int id = 0; id < size; id++) {
+      int index = hash(get(id, 0), get(id, 1), get(id, 2)) & mask;
+      while (table[index] != NIL) {
+        index = (index + 1) & mask;
+      }
+      table[index] = id;
+    }
+  }
+
+  /**
+   * 計算中に保持しているIDの集合。collectの際にIDを調べ、詰め直した後のIDに書き換えるために用いる。
+   */
+  interface Roots {
+    /**
+     * 保持しているすべてのIDにoperatorを適用し、その結果で置き換える。
+     * @param operator IDを受け取り、新しいIDを返す関数
+     */
+    void remap(IntUnaryOperator operator);
+  }
+
+  /**
+   * rootsから到達できないノードを取り除き、残ったノードを詰め直す。<br>
+   * rootsが保持するIDは詰め直した後のIDに書き換えられる。
+   * @param roots 到達可能性の起点となるIDの集合
+   */
+  void collect(Roots roots) {
+    boolean[] marked = new boolean[size];
+    int[][] stack = { new int[64] };
+    roots.remap(id -> {
+      mark(id, marked, stack);
+      return id;
+    });
+
+    // 新しいIDを先に決めてから、IDの小さい順に前へ詰める
+    int[] forward = new int[size];
+    int newSize = 0;
+    for (int id = 0; id < size; id++) {
+      forward[id] = marked[id] ? newSize++ : NIL;
+    }
+    for (int id = 0; id < size; id++) {
+      if (!marked[id]) {
+        continue;
+      }
+      int tag = get(id, 0);
+      int kind = tag & ~SLOT_FLAG;
+      int a = get(id, 1);
+      int b = get(id, 2);
+      int value = get(id, 3);
+      if ((kind == APP || kind == GROUP) && a != NIL) {
+        a = forward[a];
+      }
+      if (kind == APP) {
+        b = forward[b];
+      }
+      if (kind == GROUP && 0 <= value) {
+        value = forward[value];
+      }
+      int newId = forward[id];
+      put(newId, 0, tag);
+      put(newId, 1, a);
+      put(newId, 2, b);
+      put(newId, 3, value);
+    }
+    size = newSize;
+    rehash(table.length);
+    roots.remap(id -> id < 0 ? id : forward[id]);
+  }
+
+  /**
+   * idから到達できるノードに印をつける。
+   * @param id 起点のID
+   * @param marked 印
+   * @param stack 作業用のスタック。容量が足りない場合は拡張したものに置き換える
+   */
+  private void mark(int id, boolean[] marked, int[][] stack) {
+    if (id < 0 || marked[id]) {
+      return;
+    }
+    marked[id] = true;
+    stack[0][0] = id;
+    int stackSize = 1;
+    while (0 < stackSize) {
+      int node = stack[0][--stackSize];
+      int kind = kind(node);
+      for (int k = 1; k <= 3; k++) {
+        if ((k == 1 && kind != APP && kind != GROUP) || (k == 2 && kind != APP) || (k == 3 && kind != GROUP)) {
+          continue;
+        }
+        int child = get(node, k);
+        if (0 <= child && !marked[child]) {
+          marked[child] = true;
+          if (stack[0].length == stackSize) {
+            stack[0] = Arrays.copyOf(stack[0], stackSize * 2);
+          }
+          stack[0][stackSize++] = child;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 読み込んだマクロ関数と変数から、括弧の対応が正しいランダムなCLCodeを生成するクラス。<br>
+ * 同じシード、同じ設定で生成した項は常に同じになる。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 生成の規則:<br>
+ * <ul>
+ *   <li><p> 大きさ   - 括弧を除いたCLTerm(マクロ関数と変数)の数。</p></li>
+ *   <li><p> 項       - マクロ関数と変数から一様に選ぶか、残りの大きさが2以上の場合はnestRateの確率で括弧を開く。
+ *                      括弧の中の大きさは2から残りの大きさまでから一様に選ぶ。
+ *                      括弧の中にある括弧の数がmaxDepthに達した場合は括弧を開かない。</p></li>
+ *   <li><p> 先頭     - 項の先頭の括弧は項全体を括らない。</p></li>
+ * </ul>
+ * 括弧を開く確率は深さによらないため、括弧の深さはおおむね幾何分布に従う。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class TermGenerator {
+  /**
+   * 乱数。
+   */
+  private final Random random;
+
+  /**
+   * 項を括弧で括る確率。
+   */
+  private final double nestRate;
+
+  /**
+   * 括弧の深さの上限。
+   */
+  private final int maxDepth;
+
+  /**
+   * 選ぶCLTermの名前。マクロ関数、変数の順。
+   */
+  private final String[] atoms;
+
+  /**
+   * コンストラクタ。
+   * @param seed シード
+   * @param aNestRate 項を括弧で括る確率
+   * @param aMaxDepth 括弧の深さの上限
+   * @param variableCount 変数の数
+   */
+  TermGenerator(long seed, double aNestRate, int aMaxDepth, int variableCount) {
+    random = new Random(seed);
+    nestRate = aNestRate;
+    maxDepth = Math.max(0, aMaxDepth);
+    List<String> names = new ArrayList<>();
+    for (MacroCombinator macro : Code.macroFunctionList) {
+      char top = macro.name.isEmpty() ? 'a' : macro.name.charAt(0);
+      // 小文字で始まる名前は変数として読まれるため選ばない
+      if (!('a' <= top && top <= 'z')) {
+        names.add(macro.name);
+      }
+    }
+    for (int i = 0; i < variableCount; i++) {
+      names.add(variableName(i));
+    }
+    atoms = names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * 変数の名前を返す。x, y, z, a, b, ..., wの順とし、26個を超えた分は番号を付ける。
+   * @param index 変数の番号
+   */
+  private static String variableName(int index) {
+    return "xyzabcdefghijklmnopqrstuvw".charAt(index % 26) + (index < 26 ? "" : String.valueOf(index / 26));
+  }
+
+  /**
+   * 項を1つ生成する。<br>
+   * 括弧の中の残りの大きさを深さごとに保持し、再帰せずに生成する。
+   * @param size 大きさ
+   * @return CLCode
+   */
+  final String generate(int size) {
+    StringBuilder sb = new StringBuilder();
+    int[] remaining = new int[maxDepth + 1];
+    boolean[] first = new boolean[maxDepth + 1];
+    int depth = 0;
+    remaining[0] = Math.max(1, size);
+    first[0] = true;
+    while (true) {
+      if (remaining[depth] == 0) {
+        if (depth == 0) {
+          break;
+        }
+        sb.append(')');
+        depth--;
+        continue;
+      }
+      int max = first[depth] ? remaining[depth] - 1 : remaining[depth];
+      first[depth] = false;
+      if (2 <= max && depth < maxDepth && random.nextDouble() < nestRate) {
+        int inner = 2 + random.nextInt(max - 1);
+        remaining[depth] -= inner;
+        sb.append('(');
+        depth++;
+        remaining[depth] = inner;
+        first[depth] = true;
+      } else {
+        sb.append(atoms[random.nextInt(atoms.length)]);
+        remaining[depth]--;
+      }
+    }
+    return new String(sb);
+  }
+}
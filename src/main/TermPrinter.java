@@ -0,0 +1,453 @@
+package main;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 計算結果と計算過程の項を、文字列を組み立てずにトークン列から直接出力するクラス。<br>
+ * 出力する幅、括弧の深さを制限でき、繰り返し現れる括弧の中の項を名前付きで1回だけ表示できる。
+ * 制限を指定しない場合は、トークンの名前をそのまま順に書き出す。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 表示の形式:<br>
+ * <ul>
+ *   <li><p> 幅の制限   - 項の文字数がwidthを超える前に打ち切り、"...(+N tokens)"と残りのトークンの数を表示する。</p></li>
+ *   <li><p> 深さの制限 - depth個の括弧の中にある括弧は"(..N..)"と中のトークンの数のみを表示する。</p></li>
+ *   <li><p> 共有       - 同じ括弧が2箇所以上から参照される場合、"#1"のように名前で表示し、
+ *                        項の後の行に"  #1 = (SB(KI))"の形式で1回だけ表示する。
+ *                        同じ括弧を内側に含む括弧が繰り返し現れる場合は、外側の括弧のみを名前にする。</p></li>
+ * </ul>
+ * 名前は表示した順に付け、幅の制限で表示しなかった括弧には付けない。
+ * 名前の定義の行にも、項と同じ幅と深さの制限を行ごとに適用する。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class TermPrinter {
+  /**
+   * 名前を付ける括弧の、括弧を含めたトークンの数の下限。
+   */
+  private static final int SHARED_MIN_SIZE = 6;
+
+  /**
+   * 項目の列で括弧への参照を表す値の基準。括弧idへの参照は-(REF_BASE + id)で表し、OPENとCLOSEと区別する。
+   */
+  private static final int REF_BASE = 3;
+
+  /**
+   * 項の文字数の上限。0の場合は制限しない。
+   */
+  private final int width;
+
+  /**
+   * 表示する括弧の深さの上限。0の場合は制限しない。
+   */
+  private final int depth;
+
+  /**
+   * 繰り返し現れる括弧の中の項を名前で表示するスイッチ。
+   */
+  private final boolean shareSwitch;
+
+  /**
+   * 出力先。出力中のみ保持する。
+   */
+  private PrintWriter out;
+
+  /**
+   * 出力中の行に書き出した文字数。
+   */
+  private int written;
+
+  /**
+   * 出力中の行で書き出した(省略した分を含む)トークンの数。
+   */
+  private long consumed;
+
+  /**
+   * 出力中の行のトークンの数。
+   */
+  private long total;
+
+  /**
+   * 出力中の位置が中にある括弧の数。
+   */
+  private int level;
+
+  /**
+   * 深さの制限で省略中の括弧の中にある括弧の数。省略中でない場合は0。
+   */
+  private int skipping;
+
+  /**
+   * 深さの制限で省略中の括弧の、括弧を含めたトークンの数。
+   */
+  private int skipped;
+
+  /**
+   * 共有する括弧の中の項の、項目の列。項目はトークンまたは括弧への参照。
+   */
+  private int[][] contents;
+
+  /**
+   * 括弧の、括弧を含めたトークンの数。
+   */
+  private long[] sizes;
+
+  /**
+   * 括弧が他の括弧と一番外の項から参照される数。同じ括弧の中からの参照は1回と数える。
+   */
+  private int[] refCounts;
+
+  /**
+   * 括弧に付けた名前の番号。名前を付けていない場合は0。
+   */
+  private int[] names;
+
+  /**
+   * 名前を付けた括弧。名前の番号の順。
+   */
+  private int[] named;
+
+  /**
+   * 名前を付けた括弧の数。
+   */
+  private int namedCount;
+
+  /**
+   * トークンの名前を求めるTokenizer。
+   */
+  private final Tokenizer tokenizer;
+
+  /**
+   * コンストラクタ。
+   * @param options 実行オプション
+   * @param aTokenizer トークンの名前を求めるTokenizer
+   */
+  TermPrinter(Options options, Tokenizer aTokenizer) {
+    tokenizer = aTokenizer;
+    width = options.width;
+    depth = options.depth;
+    shareSwitch = options.shareSwitch;
+  }
+
+  /**
+   * 制限を指定していない場合trueを返す。
+   */
+  final boolean isPlain() {
+    return width <= 0 && depth <= 0 && !shareSwitch;
+  }
+
+  /**
+   * 2つのトークン列を続けた項を出力し、改行する。共有する場合は名前の定義の行も出力する。<br>
+   * 行の前に表示する見出しは、呼び出し側で書き出しておく。
+   * @param anOut 出力先
+   * @param first 前半のトークン列
+   * @param firstFrom 前半の開始位置
+   * @param firstTo 前半の終了位置(この位置は含まない)
+   * @param second 後半のトークン列
+   * @param secondFrom 後半の開始位置
+   * @param secondTo 後半の終了位置(この位置は含まない)
+   */
+  final void print(PrintWriter anOut, int[] first, int firstFrom, int firstTo, int[] second, int secondFrom,
+      int secondTo) {
+    out = anOut;
+    int[] top = shareSwitch ? share(first, firstFrom, firstTo, second, secondFrom, secondTo) : null;
+    startLine((long) firstTo - firstFrom + secondTo - secondFrom);
+    if (top == null) {
+      if (printTokens(first, firstFrom, firstTo) && printTokens(second, secondFrom, secondTo) && 0 < skipping) {
+        // 括弧が閉じずに終わった場合は、省略中の分を表示する
+        printElided(skipped);
+      }
+    } else {
+      printItems(top, false);
+    }
+    out.println();
+    for (int i = 0; i < namedCount; i++) {
+      int id = named[i];
+      out.write("  #");
+      out.write(Integer.toString(i + 1));
+      out.write(" = ");
+      startLine(sizes[id]);
+      printItems(contents[id], true);
+      out.println();
+    }
+    contents = null;
+    out = null;
+  }
+
+  /**
+   * 1つのトークン列の項を出力し、改行する。
+   * @param anOut 出力先
+   * @param tokens トークン列
+   */
+  final void print(PrintWriter anOut, int[] tokens) {
+    print(anOut, tokens, 0, tokens.length, tokens, 0, 0);
+  }
+
+  /**
+   * 行の出力の状態を初期化する。
+   * @param size 行のトークンの数
+   */
+  private void startLine(long size) {
+    written = 0;
+    consumed = 0;
+    total = size;
+    level = 0;
+    skipping = 0;
+    skipped = 0;
+  }
+
+  /**
+   * 文字列を書き出す。幅を超える場合は書き出さず、残りのトークンの数を表示する。
+   * @param s 文字列
+   * @param tokenCount 文字列が表すトークンの数
+   * @return 続けて書き出せる場合はtrue
+   */
+  private boolean emit(String s, long tokenCount) {
+    if (0 < width && width < written + s.length()) {
+      out.write("...(+" + (total - consumed) + " tokens)");
+      return false;
+    }
+    out.write(s);
+    written += s.length();
+    consumed += tokenCount;
+    return true;
+  }
+
+  /**
+   * 深さの制限で省略した括弧を書き出す。
+   * @param size 括弧を含めたトークンの数
+   * @return 続けて書き出せる場合はtrue
+   */
+  private boolean printElided(long size) {
+    return emit("(.." + Math.max(0, size - 2) + "..)", size);
+  }
+
+  /**
+   * トークン列をそのまま書き出す。深さの制限で省略中の状態はトークン列をまたいで引き継ぐ。
+   * @param tokens トークン列
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   * @return 続けて書き出せる場合はtrue
+   */
+  private boolean printTokens(int[] tokens, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int token = tokens[i];
+      if (0 < skipping) {
+        skipped++;
+        if (token == Tokenizer.OPEN) {
+          skipping++;
+        } else if (token == Tokenizer.CLOSE && --skipping == 0 && !printElided(skipped)) {
+          return false;
+        }
+        continue;
+      }
+      if (token == Tokenizer.OPEN) {
+        if (0 < depth && level == depth) {
+          skipping = 1;
+          skipped = 1;
+          continue;
+        }
+        level++;
+      } else if (token == Tokenizer.CLOSE && 0 < level) {
+        level--;
+      }
+      if (!emit(tokenizer.getName(token), 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 項目の列を書き出す。括弧の中は再帰せずに、書き出し中の項目の列をスタックに積んでたどる。
+   * @param items 項目の列
+   * @param bracketed 項目の列を括弧で囲んで書き出す場合はtrue
+   */
+  private void printItems(int[] items, boolean bracketed) {
+    int[][] stack = new int[16][];
+    int[] positions = new int[16];
+    int count = 0;
+    if (bracketed) {
+      if (!emit("(", 1)) {
+        return;
+      }
+      level++;
+    }
+    stack[count++] = items;
+    while (0 < count) {
+      int[] current = stack[count - 1];
+      int position = positions[count - 1];
+      if (position == current.length) {
+        positions[--count] = 0;
+        if ((0 < count || bracketed) && !emit(")", 1)) {
+          return;
+        }
+        level--;
+        continue;
+      }
+      positions[count - 1]++;
+      int item = current[position];
+      if (0 <= item) {
+        if (!emit(tokenizer.getName(item), 1)) {
+          return;
+        }
+        continue;
+      }
+      int id = -(item + REF_BASE);
+      if (2 <= refCounts[id] && SHARED_MIN_SIZE <= sizes[id]) {
+        // 幅の制限で表示しなかった括弧には名前を付けない
+        if (!emit("#" + (names[id] != 0 ? names[id] : namedCount + 1), sizes[id])) {
+          return;
+        }
+        nameOf(id);
+      } else if (0 < depth && level == depth) {
+        if (!printElided(sizes[id])) {
+          return;
+        }
+      } else {
+        if (!emit("(", 1)) {
+          return;
+        }
+        level++;
+        if (count == stack.length) {
+          stack = Arrays.copyOf(stack, count * 2);
+          positions = Arrays.copyOf(positions, count * 2);
+        }
+        stack[count++] = contents[id];
+      }
+    }
+  }
+
+  /**
+   * 括弧に付けた名前の番号を返す。名前を付けていない場合は新しく付ける。
+   * @param id 括弧
+   * @return 名前の番号
+   */
+  private int nameOf(int id) {
+    if (names[id] == 0) {
+      if (namedCount == named.length) {
+        named = Arrays.copyOf(named, namedCount * 2);
+      }
+      named[namedCount++] = id;
+      names[id] = namedCount;
+    }
+    return names[id];
+  }
+
+  /**
+   * 2つのトークン列を続けた項の括弧を、同じ中身ごとに1つにまとめる。<br>
+   * 括弧を閉じるたびに中身の項目の列を求め、既に同じ中身の括弧があればそれを参照する。
+   * 新しい括弧の場合のみ、中身から参照する括弧の参照数を増やす。
+   * @return 一番外の項の項目の列。括弧の数が不等な場合はnull
+   */
+  private int[] share(int[] first, int firstFrom, int firstTo, int[] second, int secondFrom, int secondTo) {
+    Map<Key, Integer> ids = new HashMap<>();
+    contents = new int[16][];
+    sizes = new long[16];
+    refCounts = new int[16];
+    named = new int[16];
+    namedCount = 0;
+    int[] items = new int[64];
+    int length = 0;
+    int[] starts = new int[16];
+    int nest = 0;
+    for (int i = firstFrom, n = firstTo - firstFrom + secondTo - secondFrom; 0 < n; n--, i++) {
+      if (i == firstTo) {
+        first = second;
+        i = secondFrom;
+      }
+      int token = first[i];
+      if (token == Tokenizer.OPEN) {
+        if (nest == starts.length) {
+          starts = Arrays.copyOf(starts, nest * 2);
+        }
+        starts[nest++] = length;
+        continue;
+      }
+      if (token == Tokenizer.CLOSE) {
+        if (nest == 0) {
+          return null;
+        }
+        int start = starts[--nest];
+        Key key = new Key(Arrays.copyOfRange(items, start, length));
+        length = start;
+        Integer id = ids.get(key);
+        if (id == null) {
+          id = ids.size();
+          ids.put(key, id);
+          addNode(id, key.items);
+        }
+        token = -(id + REF_BASE);
+      }
+      if (length == items.length) {
+        items = Arrays.copyOf(items, length * 2);
+      }
+      items[length++] = token;
+    }
+    if (0 < nest) {
+      return null;
+    }
+    int[] top = Arrays.copyOf(items, length);
+    for (int item : top) {
+      if (item < 0) {
+        refCounts[-(item + REF_BASE)]++;
+      }
+    }
+    names = new int[ids.size()];
+    return top;
+  }
+
+  /**
+   * 新しい括弧を登録し、中身から参照する括弧の参照数を増やす。
+   * @param id 括弧
+   * @param items 中身の項目の列
+   */
+  private void addNode(int id, int[] items) {
+    if (id == contents.length) {
+      contents = Arrays.copyOf(contents, id * 2);
+      sizes = Arrays.copyOf(sizes, id * 2);
+      refCounts = Arrays.copyOf(refCounts, id * 2);
+    }
+    long size = 2;
+    for (int item : items) {
+      if (item < 0) {
+        int child = -(item + REF_BASE);
+        refCounts[child]++;
+        size += sizes[child];
+      } else {
+        size++;
+      }
+    }
+    contents[id] = items;
+    sizes[id] = size;
+  }
+
+  /**
+   * 括弧の中身の項目の列を、内容で比べるためのキー。
+   */
+  private static final class Key {
+    private final int[] items;
+    private final int hash;
+
+    Key(int[] someItems) {
+      items = someItems;
+      hash = Arrays.hashCode(someItems);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(items, ((Key) obj).items);
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * コンビネータ論理文字列をCLTermのint配列(トークン列)に変換するクラス。<br>
+ * マクロ関数の名前はトライ木に登録し、最も長く一致する名前を選ぶ。
+ * そのため、定義の数や順序によらず一定の手順でCLTermを区切ることができる。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * トークンの値:<br>
+ * <ul>
+ *   <li><p> OPEN, CLOSE          - 括弧</p></li>
+ *   <li><p> 0 ～ マクロ関数の数-1 - マクロ関数(macroFunctionListの添字)</p></li>
+ *   <li><p> それ以降              - 変数、および未定義のコンビネータ</p></li>
+ *   <li><p> SCOPED_TOKEN以降      - 要求ごとのTokenizerで登録した変数、および未定義のコンビネータ</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * 常駐モードでは要求ごとにnewScopeで生成したTokenizerを使い、
+ * 要求で初めて現れた名前は共有のTokenizerに登録しない。
+ *
+ * @author Shinichi Oouchi
+ */
+final class Tokenizer {
+  /**
+   * 開き括弧を表すトークン。
+   */
+  static final int OPEN = -1;
+
+  /**
+   * 閉じ括弧を表すトークン。
+   */
+  static final int CLOSE = -2;
+
+  /**
+   * 要求ごとのTokenizerで登録した名前に割り当てる、トークンの値の開始位置。<br>
+   * 共有のTokenizerに後から登録された名前と重ならないように、十分に大きな値とする。
+   */
+  static final int SCOPED_TOKEN = 1 << 30;
+
+  /**
+   * 要求ごとのTokenizerが登録済みの名前を引き継ぐ、共有のTokenizer。共有のTokenizerではnull。
+   */
+  private final Tokenizer shared;
+
+  /**
+   * このTokenizerで登録した名前に割り当てる、トークンの値の開始位置。
+   */
+  private final int firstToken;
+
+  /**
+   * マクロ関数のリスト。
+   */
+  private final List<MacroCombinator> macroList;
+
+  /**
+   * マクロ関数の名前を登録したトライ木の根。
+   */
+  private final TrieNode root;
+
+  /**
+   * トークンの値に対応する名前。<br>
+   * 複数のスレッドから同時に読み出せるように、要素の追加はinternの中でのみ行い、
+   * 容量が足りない場合は拡張した配列に置き換える。
+   */
+  private volatile String[] names;
+
+  /**
+   * namesに登録した名前の数。
+   */
+  private int nameCount = 0;
+
+  /**
+   * 変数、および未定義のコンビネータの名前とトークンの値の対応。
+   */
+  private final Map<String, Integer> symbolMap = new HashMap<>();
+
+  /**
+   * コンストラクタ。
+   * @param aMacroList マクロ関数のリスト
+   */
+  Tokenizer(List<MacroCombinator> aMacroList) {
+    shared = null;
+    firstToken = 0;
+    macroList = aMacroList;
+    root = new TrieNode();
+    names = new String[Math.max(16, macroList.size() * 2)];
+    for (int i = 0; i < macroList.size(); i++) {
+      String name = macroList.get(i).name;
+      names[nameCount++] = name;
+      TrieNode node = root;
+      for (int j = 0; j < name.length(); j++) {
+        node = node.child(name.charAt(j), true);
+      }
+      // 同じ名前が複数定義された場合は、先に定義したものを優先する
+      if (node.macro < 0) {
+        node.macro = i;
+      }
+    }
+  }
+
+  /**
+   * 要求ごとのTokenizerを生成するコンストラクタ。<br>
+   * マクロ関数と共有のTokenizerに登録済みの名前はそのまま使い、それ以外の名前はこのTokenizerにのみ登録する。
+   * @param aShared 共有のTokenizer
+   */
+  private Tokenizer(Tokenizer aShared) {
+    shared = aShared;
+    firstToken = SCOPED_TOKEN;
+    macroList = aShared.macroList;
+    root = aShared.root;
+    names = new String[16];
+  }
+
+  /**
+   * 要求ごとのTokenizerを生成する。要求の計算が終わった後は、登録した名前とともに捨てる。
+   * @return 要求ごとのTokenizer
+   */
+  final Tokenizer newScope() {
+    return new Tokenizer(this);
+  }
+
+  /**
+   * 文字列をトークン列に変換する。<br>
+   * CLTermはそれぞれ以下のいずれかとして取り出される。
+   *
+   * {@literal @formatter:off}<br>
+   *
+   * <ul>
+   *   <li><p> 1. 括弧</p></li>
+   *   <li><p> 2. 小文字1つで始まる、アンダースコアや数字が0個以上連続する変数</p></li>
+   *   <li><p> 3. マクロ関数の名前のうち、最も長く一致するもの</p></li>
+   *   <li><p> 4. 上記以外の1文字(未定義のコンビネータ)</p></li>
+   * </ul>
+   *
+   * {@literal @formatter:on}<br>
+   *
+   * @param code 対象文字列
+   * @return トークン列
+   */
+  final int[] tokenize(CharSequence code) {
+    int[] tokens = new int[code.length()];
+    int count = 0;
+    int length = code.length();
+    int index = 0;
+    while (index < length) {
+      char top = code.charAt(index);
+      int next = index + 1;
+      if (top == '(') {
+        tokens[count++] = OPEN;
+      } else if (top == ')') {
+        tokens[count++] = CLOSE;
+      } else if ('a' <= top && top <= 'z') {
+        // 小文字で始まる変数項の場合
+        while (next < length && isVariablePart(code.charAt(next))) {
+          next++;
+        }
+        tokens[count++] = intern(code.subSequence(index, next).toString());
+      } else {
+        int matchLength = 0;
+        int macro = -1;
+        TrieNode node = root;
+        for (int i = index; i < length && node != null; i++) {
+          node = node.child(code.charAt(i), false);
+          if (node != null && 0 <= node.macro) {
+            macro = node.macro;
+            matchLength = i - index + 1;
+          }
+        }
+        if (0 <= macro) {
+          // マクロ定義した関数の場合
+          tokens[count++] = macro;
+          next = index + matchLength;
+        } else {
+          // 未定義の関数の場合
+          tokens[count++] = intern(String.valueOf(top));
+        }
+      }
+      index = next;
+    }
+    // 1文字ずつのトークンの場合は複製しない
+    return count == tokens.length ? tokens : Arrays.copyOf(tokens, count);
+  }
+
+  /**
+   * indexの位置から始まるCLTermの次の位置を返す。<br>
+   * 括弧で始まる場合は対応する括弧の次の位置を返す。
+   * 対応する括弧が存在しない場合は終端の位置を返す。
+   * @param tokens トークン列
+   * @param index CLTermの開始位置
+   * @param end トークン列の終端の位置
+   * @return CLTermの次の位置
+   */
+  static int skipCLTerm(int[] tokens, int index, int end) {
+    if (tokens[index] != OPEN) {
+      return index + 1;
+    }
+    int k = 0;
+    while (index < end) {
+      k = tokens[index] == OPEN ? ++k : k;
+      k = tokens[index] == CLOSE ? --k : k;
+      index++;
+      // ')'を見つけ、最終的にネストの回数が0になった時、括弧の終わりと判定し、ループを抜ける。
+      if (k == 0) {
+        break;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * 変数の2文字目以降に使用できる文字かどうかを調べる。
+   */
+  private static boolean isVariablePart(char ch) {
+    return ch == '_' || ('0' <= ch && ch <= '9');
+  }
+
+  /**
+   * 変数、または未定義のコンビネータの名前に対応するトークンの値を返す。
+   * @param name 名前
+   * @return トークンの値
+   */
+  private synchronized int intern(String name) {
+    Integer token = symbolMap.get(name);
+    if (token == null && shared != null) {
+      token = shared.lookup(name);
+    }
+    if (token == null) {
+      token = firstToken + nameCount;
+      String[] current = names;
+      if (current.length == nameCount) {
+        current = Arrays.copyOf(current, nameCount * 2);
+      }
+      current[nameCount++] = name;
+      names = current;
+      symbolMap.put(name, token);
+    }
+    return token;
+  }
+
+  /**
+   * 登録済みの変数、または未定義のコンビネータの名前に対応するトークンの値を返す。
+   * @param name 名前
+   * @return トークンの値。登録されていない場合はnull
+   */
+  private synchronized Integer lookup(String name) {
+    return symbolMap.get(name);
+  }
+
+  /**
+   * トークンに対応するマクロ関数を返す。
+   * @param token トークン
+   * @return マクロ関数。マクロ関数でない場合はnull
+   */
+  final MacroCombinator getMacro(int token) {
+    return 0 <= token && token < macroList.size() ? macroList.get(token) : null;
+  }
+
+  /**
+   * トークンに対応するマクロ関数を、部分評価した定義を使うかどうかを指定して返す。
+   * @param token トークン
+   * @param foldSwitch 部分評価した定義がある場合にそれを返すかどうか
+   * @return マクロ関数。マクロ関数でない場合はnull
+   */
+  final MacroCombinator getMacro(int token, boolean foldSwitch) {
+    MacroCombinator macro = getMacro(token);
+    return foldSwitch && macro != null && macro.getFolded() != null ? macro.getFolded() : macro;
+  }
+
+  /**
+   * トークンが変数かどうかを調べる。
+   */
+  final boolean isVariable(int token) {
+    if (token < macroList.size()) {
+      return false;
+    }
+    char top = getName(token).charAt(0);
+    return 'a' <= top && top <= 'z';
+  }
+
+  /**
+   * トークンが未定義のコンビネータかどうかを調べる。
+   */
+  final boolean isUndefined(int token) {
+    return token == CLOSE || (macroList.size() <= token && !isVariable(token));
+  }
+
+  /**
+   * トークンの名前を返す。
+   */
+  final String getName(int token) {
+    if (token == OPEN) {
+      return "(";
+    }
+    if (token == CLOSE) {
+      return ")";
+    }
+    if (token < firstToken) {
+      return shared.getName(token);
+    }
+    return names[token - firstToken];
+  }
+
+  /**
+   * トークン列を文字列としてsbに書き出す。
+   * @param sb 出力先
+   * @param tokens トークン列
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  final void appendTo(StringBuilder sb, int[] tokens, int from, int to) {
+    for (int i = from; i < to; i++) {
+      sb.append(getName(tokens[i]));
+    }
+  }
+
+  /**
+   * トライ木のノード。
+   */
+  private static final class TrieNode {
+    private char[] keys = new char[0];
+    private TrieNode[] children = new TrieNode[0];
+
+    /**
+     * このノードで名前が終わるマクロ関数の添字。存在しない場合は-1。
+     */
+    private int macro = -1;
+
+    /**
+     * 文字に対応する子ノードを返す。
+     * @param ch 文字
+     * @param create 子ノードが存在しない場合に作成するかどうか
+     * @return 子ノード。存在せず作成もしない場合はnull
+     */
+    private TrieNode child(char ch, boolean create) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == ch) {
+          return children[i];
+        }
+      }
+      if (!create) {
+        return null;
+      }
+      int length = keys.length;
+      char[] newKeys = new char[length + 1];
+      TrieNode[] newChildren = new TrieNode[length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, length);
+      System.arraycopy(children, 0, newChildren, 0, length);
+      newKeys[length] = ch;
+      newChildren[length] = new TrieNode();
+      keys = newKeys;
+      children = newChildren;
+      return children[length];
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TraceWriterで記録した計算過程を、通常の計算過程の表示の形式で出力するクラス。<br>
+ * 記録した差分を先頭から順に適用してコードを復元し、指定した範囲のステップのみを表示する。
+ *
+ * <p>実行方法: java -cp CLSC.jar main.TraceReplay file [-line number] [-from step] [-to step] [-n[oindent]]</p>
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 実行オプション:<br>
+ * <ul>
+ *   <li><p> -line number - number番目に計算したCLCodeのみを表示する。デフォルト: すべて</p></li>
+ *   <li><p> -from step   - stepより前のステップを表示しない。デフォルト: 1</p></li>
+ *   <li><p> -to step     - stepより後のステップを表示しない。デフォルト: 最後まで</p></li>
+ *   <li><p> -n[oindent]  - インデント整形を行わない。</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+public final class TraceReplay {
+  private static final String CODE = "Code   : ";
+  private static final String RESULT = "Result: ";
+  private static final String LINE = "------------------------------";
+
+  /**
+   * 読み込み元。
+   */
+  private final InputStream in;
+
+  /**
+   * 出力先。
+   */
+  private final PrintWriter out;
+
+  /**
+   * トークンの名前。
+   */
+  private String[] names = new String[64];
+
+  /**
+   * 復元中のコード全体。tokens[head]から配列の末尾までがコードとなる。
+   */
+  private int[] tokens = new int[16];
+
+  /**
+   * 復元中のコードの先頭の位置。
+   */
+  private int head = tokens.length;
+
+  /**
+   * 挿入するトークン列を読み込むための作業領域。
+   */
+  private int[] inserted = new int[16];
+
+  /**
+   * 計算過程の1行を組み立てるための作業領域。
+   */
+  private final StringBuilder line = new StringBuilder();
+
+  private TraceReplay(InputStream anIn, PrintWriter anOut) {
+    in = anIn;
+    out = anOut;
+  }
+
+  /**
+   * 記録した計算過程を表示する。
+   * @param args コマンドライン引数
+   */
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.out.println("Usage: java main.TraceReplay file [-line number] [-from step] [-to step] [-n]");
+      return;
+    }
+    List<String> argsList = Arrays.asList(args);
+    long targetLine = getNumber(argsList, "-line", 0);
+    long from = getNumber(argsList, "-from", 1);
+    long to = getNumber(argsList, "-to", Long.MAX_VALUE);
+    boolean indentSwitch = !(argsList.contains("-n") || argsList.contains("-noindent"));
+    PrintWriter out = new PrintWriter(System.out);
+    try (InputStream in = new BufferedInputStream(new FileInputStream(args[0]), 1 << 16)) {
+      new TraceReplay(in, out).replay(targetLine, from, to, indentSwitch);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    out.flush();
+  }
+
+  /**
+   * 記録を最後まで読み込み、指定した範囲を表示する。
+   * @param targetLine 表示するCLCodeの番号。0の場合はすべて
+   * @param from 表示する最初のステップ
+   * @param to 表示する最後のステップ
+   * @param indentSwitch インデント整形を行うか
+   * @throws IOException 読み込みに失敗した場合、または形式が正しくない場合
+   */
+  private void replay(long targetLine, long from, long to, boolean indentSwitch) throws IOException {
+    for (byte b : TraceWriter.MAGIC) {
+      if (in.read() != b) {
+        throw new IOException("Not a trace file.");
+      }
+    }
+    long lineCount = 0;
+    long stepCount = 0;
+    boolean selected = false;
+    int kind;
+    while ((kind = in.read()) != -1) {
+      // レコードの種類は1バイトの可変長整数として記録されている
+      switch (kind >> 1) {
+      case TraceWriter.NAME:
+        int token = readInt();
+        byte[] bytes = new byte[readInt()];
+        readFully(bytes);
+        if (names.length <= token) {
+          names = Arrays.copyOf(names, Math.max(names.length * 2, token + 1));
+        }
+        names[token] = new String(bytes, StandardCharsets.UTF_8);
+        break;
+      case TraceWriter.BEGIN:
+        lineCount++;
+        stepCount = 0;
+        selected = targetLine == 0 || targetLine == lineCount;
+        head = tokens.length;
+        splice(0, 0);
+        if (selected) {
+          out.println(CODE + render(0, tokens.length - head));
+        }
+        break;
+      case TraceWriter.STEP:
+        int clTermCount = readInt();
+        int nestCount = readInt();
+        int codeStart = readInt();
+        int codeLength = readInt();
+        stepCount++;
+        if (selected && from <= stepCount && stepCount <= to) {
+          printStep(stepCount, clTermCount, nestCount, codeStart, codeLength, indentSwitch);
+        }
+        break;
+      case TraceWriter.REWRITE:
+        readInt();
+        int rewritePosition = readInt();
+        splice(rewritePosition, readInt());
+        break;
+      case TraceWriter.SPLICE:
+        int position = readInt();
+        splice(position, readInt());
+        break;
+      case TraceWriter.END:
+        if (selected) {
+          out.println(RESULT + render(0, tokens.length - head));
+          out.println("");
+          out.println(LINE);
+        }
+        break;
+      default:
+        throw new IOException("Unknown record: " + (kind >> 1));
+      }
+    }
+  }
+
+  /**
+   * 挿入するトークン列を読み込み、コードのpositionの位置のremoved個のトークンと置き換える。<br>
+   * 置き換える位置より前のトークンのみを移動する。
+   * @param position コードの先頭からの位置
+   * @param removed 取り除くトークンの数
+   * @throws IOException 読み込みに失敗した場合
+   */
+  private void splice(int position, int removed) throws IOException {
+    int length = readInt();
+    if (inserted.length < length) {
+      inserted = new int[Math.max(inserted.length * 2, length)];
+    }
+    for (int i = 0; i < length; i++) {
+      inserted[i] = readInt();
+    }
+    int delta = length - removed;
+    if (head < delta) {
+      int size = tokens.length - head;
+      int[] dest = new int[Math.max(tokens.length * 2, size + delta)];
+      System.arraycopy(tokens, head, dest, dest.length - size, size);
+      head = dest.length - size;
+      tokens = dest;
+    }
+    System.arraycopy(tokens, head, tokens, head - delta, position);
+    head -= delta;
+    System.arraycopy(inserted, 0, tokens, head + position, length);
+  }
+
+  /**
+   * 計算過程の1行を出力する。
+   */
+  private void printStep(long stepCount, int clTermCount, int nestCount, int codeStart, int codeLength,
+      boolean indentSwitch) {
+    String indent = "";
+    if (indentSwitch) {
+      char[] spaces = new char[nestCount * 2];
+      Arrays.fill(spaces, ' ');
+      indent = new String(spaces);
+    }
+    out.println(String.format("S: %1$4d | CLT: %2$5d | N: %3$3d | Code: %4$s%5$s",
+        stepCount, clTermCount, nestCount, indent, render(codeStart, codeLength)));
+  }
+
+  /**
+   * コードのstartの位置からlength個のトークンを文字列にする。
+   */
+  private String render(int start, int length) {
+    line.setLength(0);
+    for (int i = head + start; i < head + start + length; i++) {
+      int token = tokens[i];
+      line.append(token == Tokenizer.OPEN ? "(" : token == Tokenizer.CLOSE ? ")" : names[token]);
+    }
+    return new String(line);
+  }
+
+  /**
+   * 符号付き可変長整数を読み込む。
+   */
+  private int readInt() throws IOException {
+    int v = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  private void readFully(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int count = in.read(bytes, offset, bytes.length - offset);
+      if (count < 0) {
+        throw new EOFException();
+      }
+      offset += count;
+    }
+  }
+
+  /**
+   * オプションの次の引数に指定された数値を返す。
+   */
+  private static long getNumber(List<String> argsList, String name, long defaultValue) {
+    int index = argsList.indexOf(name);
+    if (0 <= index && index + 1 < argsList.size() && argsList.get(index + 1).matches("^[0-9]+")) {
+      return Long.parseLong(argsList.get(index + 1));
+    }
+    return defaultValue;
+  }
+}
@@ -0,0 +1,227 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * 計算過程をバイナリ形式で記録するクラス。<br>
+ * 計算中のコード全体(括弧の中を計算している間は外側のコードを含む)を毎回記録する代わりに、
+ * 各ステップで取り除いたトークンと挿入したトークンの差分のみを記録する。
+ * 記録した計算過程はTraceReplayで通常の計算過程の表示に戻す。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 形式: 先頭に"CLTR"とバージョンの1バイト、以降はレコードが続く。数値はすべて符号付き可変長整数。<br>
+ * <ul>
+ *   <li><p> NAME    - トークン、名前(UTF-8のバイト数とバイト列)。トークンを初めて使う前に置く。</p></li>
+ *   <li><p> BEGIN   - トークンの数、トークン列。1つのCLCodeの計算の開始。</p></li>
+ *   <li><p> STEP    - CLTermの数、括弧の中にもぐっている数、計算中のコードの開始位置とトークンの数。</p></li>
+ *   <li><p> REWRITE - マクロ関数のトークン、位置、取り除いた数、挿入した数、トークン列。
+ *                     正規形になった部分の直後での書き換え。</p></li>
+ *   <li><p> SPLICE  - 位置、取り除いた数、挿入した数、トークン列。</p></li>
+ *   <li><p> END     - 1つのCLCodeの計算の終了。</p></li>
+ * </ul>
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+final class TraceWriter {
+  static final byte[] MAGIC = { 'C', 'L', 'T', 'R', 2 };
+  static final int NAME = 1;
+  static final int BEGIN = 2;
+  static final int STEP = 3;
+  static final int REWRITE = 4;
+  static final int SPLICE = 5;
+  static final int END = 6;
+
+  /**
+   * 書き出し先。
+   */
+  private final OutputStream out;
+
+  /**
+   * 書き出し前のレコードを溜める領域。
+   */
+  private byte[] buffer = new byte[1 << 16];
+
+  /**
+   * 溜めているバイト数。
+   */
+  private int count = 0;
+
+  /**
+   * NAMEレコードを書き出したトークン。
+   */
+  private final BitSet namedTokens = new BitSet();
+
+  /**
+   * 記録している計算中のコード全体のトークンの数。
+   */
+  private int length = 0;
+
+  /**
+   * コンストラクタ。
+   * @param anOut 書き出し先。ファイルの先頭にはwriteHeaderで書き出したヘッダが必要
+   */
+  TraceWriter(OutputStream anOut) {
+    out = anOut;
+  }
+
+  /**
+   * ファイルの先頭に置くヘッダを書き出す。
+   * @param out 書き出し先
+   * @throws IOException 書き出しに失敗した場合
+   */
+  static void writeHeader(OutputStream out) throws IOException {
+    out.write(MAGIC);
+  }
+
+  /**
+   * CLCodeの計算の開始を記録する。
+   * @param tokens トークン列
+   * @param from 開始位置
+   * @param to 終了位置(この位置は含まない)
+   */
+  final void begin(int[] tokens, int from, int to) {
+    writeNames(tokens, from, to);
+    writeInt(BEGIN);
+    writeTokens(tokens, from, to);
+    length = to - from;
+  }
+
+  /**
+   * 計算過程の1行を記録する。
+   * @param clTermCount CLTermの数
+   * @param nestCount 括弧の中にもぐっている数
+   * @param codeStart 計算中のコードの、記録しているコード全体の先頭からの位置
+   * @param codeLength 計算中のコードのトークンの数
+   */
+  final void step(int clTermCount, int nestCount, int codeStart, int codeLength) {
+    writeInt(STEP);
+    writeInt(clTermCount);
+    writeInt(nestCount);
+    writeInt(codeStart);
+    writeInt(codeLength);
+  }
+
+  /**
+   * マクロ関数による先頭の書き換えを記録する。
+   * @param rule マクロ関数のトークン
+   * @param position 計算中のコード全体の先頭からの位置
+   * @param removed 取り除いたトークンの数
+   * @param tokens 挿入したトークンを含むトークン列
+   * @param from 挿入したトークンの開始位置
+   * @param to 挿入したトークンの終了位置(この位置は含まない)
+   */
+  final void rewrite(int rule, int position, int removed, int[] tokens, int from, int to) {
+    writeNames(tokens, from, to);
+    writeInt(REWRITE);
+    writeInt(rule);
+    writeInt(position);
+    writeInt(removed);
+    writeTokens(tokens, from, to);
+    length += to - from - removed;
+  }
+
+  /**
+   * 任意の位置のトークンの置き換えを記録する。
+   * @param position 計算中のコード全体の先頭からの位置
+   * @param removed 取り除いたトークンの数
+   * @param tokens 挿入したトークンを含むトークン列
+   * @param from 挿入したトークンの開始位置
+   * @param to 挿入したトークンの終了位置(この位置は含まない)
+   */
+  final void splice(int position, int removed, int[] tokens, int from, int to) {
+    writeNames(tokens, from, to);
+    writeInt(SPLICE);
+    writeInt(position);
+    writeInt(removed);
+    writeTokens(tokens, from, to);
+    length += to - from - removed;
+  }
+
+  /**
+   * 計算中のコード全体を置き換える。差分を求められないグラフ簡約で用いる。
+   * @param tokens 新しいコードのトークン列
+   */
+  final void snapshot(int[] tokens) {
+    splice(0, length, tokens, 0, tokens.length);
+  }
+
+  /**
+   * CLCodeの計算の終了を記録し、溜めているレコードを書き出す。
+   */
+  final void end() {
+    writeInt(END);
+    flush();
+  }
+
+  /**
+   * まだ名前を記録していないトークンのNAMEレコードを書き出す。
+   */
+  private void writeNames(int[] tokens, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int token = tokens[i];
+      if (0 <= token && !namedTokens.get(token)) {
+        namedTokens.set(token);
+        byte[] name = Code.tokenizer.getName(token).getBytes(StandardCharsets.UTF_8);
+        writeInt(NAME);
+        writeInt(token);
+        writeInt(name.length);
+        ensureCapacity(name.length);
+        System.arraycopy(name, 0, buffer, count, name.length);
+        count += name.length;
+      }
+    }
+  }
+
+  /**
+   * トークンの数とトークン列を書き出す。
+   */
+  private void writeTokens(int[] tokens, int from, int to) {
+    writeInt(to - from);
+    for (int i = from; i < to; i++) {
+      writeInt(tokens[i]);
+    }
+  }
+
+  /**
+   * 数値を符号付き可変長整数(zigzag符号化した7ビットずつ)で書き出す。
+   */
+  private void writeInt(int value) {
+    ensureCapacity(5);
+    int v = (value << 1) ^ (value >> 31);
+    while ((v & ~0x7F) != 0) {
+      buffer[count++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buffer[count++] = (byte) v;
+  }
+
+  /**
+   * 領域にsizeバイトの空きを確保する。足りない場合は溜めているレコードを書き出す。
+   */
+  private void ensureCapacity(int size) {
+    if (buffer.length - count < size) {
+      flush();
+      if (buffer.length < size) {
+        buffer = new byte[size];
+      }
+    }
+  }
+
+  /**
+   * 溜めているレコードを書き出す。
+   */
+  private void flush() {
+    try {
+      out.write(buffer, 0, count);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    count = 0;
+  }
+}
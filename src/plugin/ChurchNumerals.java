@@ -0,0 +1,228 @@
+package plugin;
+
+import main.NativeCall;
+import main.NativeCombinator;
+
+/**
+ * チャーチ数の計算をJavaで行うNativeCombinatorの実装。<br>
+ * 引数がチャーチ数として読み取れる場合のみ、簡約を繰り返さずに1ステップで計算結果を返す。
+ * 読み取れない場合は計算せず、Combinators.csvの整形フォーマットで計算する。
+ *
+ * {@literal @formatter:off}<br>
+ *
+ * 読み取るチャーチ数:<br>
+ * <ul>
+ *   <li><p> 0   - KI、または&lt;zero&gt;</p></li>
+ *   <li><p> 1   - &lt;one&gt;</p></li>
+ *   <li><p> n+1 - SB(n)、または&lt;suc&gt;(n)</p></li>
+ * </ul>
+ *
+ * 計算結果のチャーチ数はSB(...(SB(KI)))、真偽値はK(真)とKI(偽)で返す。
+ *
+ * {@literal @formatter:on}<br>
+ *
+ * @author Shinichi Oouchi
+ */
+public final class ChurchNumerals {
+  /**
+   * 計算結果として返すチャーチ数の上限。超える場合は整形フォーマットで計算する。
+   */
+  private static final long MAX_NUMERAL = 1 << 20;
+
+  private ChurchNumerals() {
+  }
+
+  /**
+   * 足し算。church.add、引数は2つ。
+   */
+  public static final class Add implements NativeCombinator {
+    @Override
+    public String getName() {
+      return "church.add";
+    }
+
+    @Override
+    public boolean reduce(NativeCall call) {
+      long m = parse(call, 0);
+      long n = parse(call, 1);
+      return 0 <= m && 0 <= n && appendNumeral(call, m + n);
+    }
+  }
+
+  /**
+   * 掛け算。church.mul、引数は2つ。
+   */
+  public static final class Multiply implements NativeCombinator {
+    @Override
+    public String getName() {
+      return "church.mul";
+    }
+
+    @Override
+    public boolean reduce(NativeCall call) {
+      long m = parse(call, 0);
+      long n = parse(call, 1);
+      return 0 <= m && 0 <= n && appendNumeral(call, m * n);
+    }
+  }
+
+  /**
+   * 1を引く。0の場合は0。church.pred、引数は1つ。
+   */
+  public static final class Predecessor implements NativeCombinator {
+    @Override
+    public String getName() {
+      return "church.pred";
+    }
+
+    @Override
+    public boolean reduce(NativeCall call) {
+      long n = parse(call, 0);
+      return 0 <= n && appendNumeral(call, Math.max(0, n - 1));
+    }
+  }
+
+  /**
+   * 0かどうか。church.iszero、引数は1つ。
+   */
+  public static final class IsZero implements NativeCombinator {
+    @Override
+    public String getName() {
+      return "church.iszero";
+    }
+
+    @Override
+    public boolean reduce(NativeCall call) {
+      long n = parse(call, 0);
+      return 0 <= n && appendBoolean(call, n == 0);
+    }
+  }
+
+  /**
+   * 等しいかどうか。church.eq、引数は2つ。
+   */
+  public static final class Equal implements NativeCombinator {
+    @Override
+    public String getName() {
+      return "church.eq";
+    }
+
+    @Override
+    public boolean reduce(NativeCall call) {
+      long m = parse(call, 0);
+      long n = parse(call, 1);
+      return 0 <= m && 0 <= n && appendBoolean(call, m == n);
+    }
+  }
+
+  /**
+   * index番目の引数をチャーチ数として読み取る。<br>
+   * 入れ子の数だけ再帰しないように、先頭から"SB("の繰り返しを数え、最後に同じ数の閉じ括弧を確かめる。
+   * @param call 引数
+   * @param index 引数の番号
+   * @return チャーチ数。読み取れない場合は-1
+   */
+  static long parse(NativeCall call, int index) {
+    if (call.getArgsCount() <= index) {
+      return -1;
+    }
+    int s = NativeCall.getToken("S");
+    int b = NativeCall.getToken("B");
+    int k = NativeCall.getToken("K");
+    int i = NativeCall.getToken("I");
+    int zero = NativeCall.getToken("<zero>");
+    int one = NativeCall.getToken("<one>");
+    int suc = NativeCall.getToken("<suc>");
+    int length = call.getArgLength(index);
+    int position = 0;
+    int closeCount = 0;
+    long n = 0;
+    while (position < length) {
+      int token = call.getArgToken(index, position);
+      if (token == NativeCall.OPEN) {
+        // 余分な括弧
+        position++;
+        closeCount++;
+      } else if (token == s && position + 2 < length && call.getArgToken(index, position + 1) == b
+          && call.getArgToken(index, position + 2) == NativeCall.OPEN) {
+        position += 3;
+        closeCount++;
+        n++;
+      } else if (token == suc && position + 1 < length
+          && call.getArgToken(index, position + 1) == NativeCall.OPEN) {
+        position += 2;
+        closeCount++;
+        n++;
+      } else {
+        break;
+      }
+    }
+    if (position + 1 < length && call.getArgToken(index, position) == k
+        && call.getArgToken(index, position + 1) == i) {
+      position += 2;
+    } else if (position < length && zero != NativeCall.NONE && call.getArgToken(index, position) == zero) {
+      position++;
+    } else if (position < length && one != NativeCall.NONE && call.getArgToken(index, position) == one) {
+      position++;
+      n++;
+    } else {
+      return -1;
+    }
+    if (length - position != closeCount) {
+      return -1;
+    }
+    for (; position < length; position++) {
+      if (call.getArgToken(index, position) != NativeCall.CLOSE) {
+        return -1;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * チャーチ数を計算結果に書き込む。
+   * @param call 書き込み先
+   * @param n チャーチ数
+   * @return 書き込んだ場合はtrue。上限を超える場合やSBKIが定義されていない場合はfalse
+   */
+  static boolean appendNumeral(NativeCall call, long n) {
+    int s = NativeCall.getToken("S");
+    int b = NativeCall.getToken("B");
+    int k = NativeCall.getToken("K");
+    int i = NativeCall.getToken("I");
+    if (MAX_NUMERAL < n || s == NativeCall.NONE || b == NativeCall.NONE || k == NativeCall.NONE
+        || i == NativeCall.NONE) {
+      return false;
+    }
+    for (long j = 0; j < n; j++) {
+      call.append(s);
+      call.append(b);
+      call.append(NativeCall.OPEN);
+    }
+    call.append(k);
+    call.append(i);
+    for (long j = 0; j < n; j++) {
+      call.append(NativeCall.CLOSE);
+    }
+    return true;
+  }
+
+  /**
+   * 真偽値を計算結果に書き込む。真はK、偽はKI。
+   * @param call 書き込み先
+   * @param value 真偽値
+   * @return 書き込んだ場合はtrue。KIが定義されていない場合はfalse
+   */
+  static boolean appendBoolean(NativeCall call, boolean value) {
+    int k = NativeCall.getToken("K");
+    int i = NativeCall.getToken("I");
+    if (k == NativeCall.NONE || i == NativeCall.NONE) {
+      return false;
+    }
+    call.append(k);
+    if (!value) {
+      call.append(i);
+    }
+    return true;
+  }
+}
@@ -8,23 +8,13 @@ public final class BracketStrategy extends Strategy {
   }
 
   /**
-   * 文字列の先頭が'('だった場合に実行されるメソッド<br>
-   * 括弧の中の文字列に対して計算を行い、計算が終了したものを返す
+   * コードの先頭が'('だった場合に実行されるメソッド<br>
+   * 括弧の中にもぐり、以降のステップでは括弧の中のコードに対して計算を行う。
+   * 計算が終了したものはCode.calculateが先頭に戻す
    */
   @Override
-  public String calculate(String clterm) {
-    // CLTermの一番外に存在する括弧の削除
-    StringBuilder sb = new StringBuilder(clterm);
-    sb.deleteCharAt(0);
-    int length = sb.length();
-    sb.deleteCharAt(length - 1);
-
-    // 括弧内の文字列で再びCode.calculateを実行
-    Code code2 = new Code(new String(sb));
-    Code.nestCount++;
-    code2.calculate();
-    Code.nestCount--;
-    String result = code2.getCode();
-    return result;
+  public boolean calculate() {
+    // CLTermの一番外に存在する括弧を削除したコードへもぐる
+    return code.enterCompoundCode();
   }
 }
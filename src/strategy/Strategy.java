@@ -11,5 +11,9 @@ public abstract class Strategy {
   public Strategy() {
   }
 
-  public abstract String calculate(String clterm);
+  /**
+   * コードの先頭のCLTermに対する計算を行う。
+   * @return 計算を続けられる場合はtrue
+   */
+  public abstract boolean calculate();
 }
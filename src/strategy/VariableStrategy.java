@@ -20,7 +20,7 @@ public final class VariableStrategy extends Strategy {
    * 変数が見つかった場合、何も行わずにループを抜け出す。
    */
   @Override
-  public String calculate(String clterm) {
-    return "";
+  public boolean calculate() {
+    return false;
   }
 }